@@ -0,0 +1,252 @@
+package de.yanwittmann.processing;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Embedded HTTP server that serves the canvas as an MJPEG stream on {@code /stream} and as single JPEG snapshots on
+ * {@code /snapshot}, bound to the loopback interface only.
+ * <p>
+ * The render loop asks {@link #wantsFrame()} after every frame and only copies its pixels into the reused frame buffer
+ * via {@link #offer(int[], int, int)} if someone is watching and the encoder is idle, so nothing is captured while no
+ * one is connected. Encoding happens on a separate thread, every encoded frame is shared by all viewers.
+ * The frame rate is divided between the viewers, as each of them costs an additional socket write per frame.
+ */
+class FrameStreamServer {
+
+    private static final String BOUNDARY = "frame";
+    private static final long SNAPSHOT_TIMEOUT_MILLIS = 2000;
+
+    private final float maxFramesPerSecond;
+    private final float minFramesPerSecond;
+    private final float quality;
+
+    private final HttpServer server;
+    private final ExecutorService clientExecutor;
+    private final Thread encoderThread;
+    private volatile boolean running = true;
+
+    private final AtomicInteger viewers = new AtomicInteger();
+    private final AtomicInteger snapshotRequests = new AtomicInteger();
+
+    // Frame buffer, written by the render loop while frameBusy is false and encoded while it is true
+    private final AtomicBoolean frameBusy = new AtomicBoolean(false);
+    private BufferedImage frame;
+    private long lastCaptureNanos = 0;
+
+    // Latest encoded frame, guarded by jpegLock
+    private final Object jpegLock = new Object();
+    private byte[] jpeg;
+    private long jpegSequence = 0;
+
+    FrameStreamServer(int port, float maxFramesPerSecond, float minFramesPerSecond, float quality) throws IOException {
+        this.maxFramesPerSecond = maxFramesPerSecond;
+        this.minFramesPerSecond = minFramesPerSecond;
+        this.quality = quality;
+
+        // Every stream viewer blocks one thread while connected
+        clientExecutor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "frame-stream-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(clientExecutor);
+        server.createContext("/stream", this::handleStream);
+        server.createContext("/snapshot", this::handleSnapshot);
+        server.createContext("/", this::handleIndex);
+
+        encoderThread = new Thread(this::encodeFrames, "frame-stream-encoder");
+        encoderThread.setDaemon(true);
+    }
+
+    void start() {
+        encoderThread.start();
+        server.start();
+    }
+
+    void stop() {
+        running = false;
+        LockSupport.unpark(encoderThread);
+        synchronized (jpegLock) {
+            jpegLock.notifyAll();
+        }
+        server.stop(0);
+        clientExecutor.shutdownNow();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Checks whether the next frame should be offered: someone is waiting for a frame, the encoder is idle and, for
+     * streams, the frame interval for the current number of viewers has passed. Only called from the render loop.
+     */
+    boolean wantsFrame() {
+        final int viewerCount = viewers.get();
+        if (viewerCount == 0 && snapshotRequests.get() == 0) {
+            return false;
+        }
+        if (frameBusy.get()) {
+            return false;
+        }
+        if (snapshotRequests.get() > 0) {
+            return true;
+        }
+        final float framesPerSecond = Math.max(minFramesPerSecond, maxFramesPerSecond / viewerCount);
+        return System.nanoTime() - lastCaptureNanos >= (long) (1e9 / framesPerSecond);
+    }
+
+    /**
+     * Copies the given ARGB pixels into the frame buffer and hands it to the encoder, does nothing if the encoder is
+     * still busy with the previous frame. Only called from the render loop.
+     */
+    void offer(int[] pixels, int width, int height) {
+        if (frameBusy.get()) {
+            return;
+        }
+        if (frame == null || frame.getWidth() != width || frame.getHeight() != height) {
+            frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        final int[] framePixels = ((DataBufferInt) frame.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, 0, framePixels, 0, width * height);
+        lastCaptureNanos = System.nanoTime();
+
+        frameBusy.set(true);
+        LockSupport.unpark(encoderThread);
+    }
+
+    private void encodeFrames() {
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        final ImageWriteParam parameters = writer.getDefaultWriteParam();
+        parameters.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        parameters.setCompressionQuality(quality);
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        while (running) {
+            if (!frameBusy.get()) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            try {
+                buffer.reset();
+                try (ImageOutputStream output = new MemoryCacheImageOutputStream(buffer)) {
+                    writer.setOutput(output);
+                    writer.write(null, new IIOImage(frame, null, null), parameters);
+                }
+                final byte[] encoded = buffer.toByteArray();
+                synchronized (jpegLock) {
+                    jpeg = encoded;
+                    jpegSequence++;
+                    jpegLock.notifyAll();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                frameBusy.set(false);
+            }
+        }
+        writer.dispose();
+    }
+
+    private void handleStream(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache, no-store");
+        exchange.sendResponseHeaders(200, 0);
+
+        viewers.incrementAndGet();
+        try (OutputStream out = exchange.getResponseBody()) {
+            long sequence;
+            synchronized (jpegLock) {
+                sequence = jpegSequence;
+            }
+            while (running) {
+                final byte[] data;
+                synchronized (jpegLock) {
+                    while (running && jpegSequence == sequence) {
+                        jpegLock.wait();
+                    }
+                    sequence = jpegSequence;
+                    data = jpeg;
+                }
+                if (data == null) {
+                    continue;
+                }
+                out.write(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + data.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(data);
+                out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // Viewer disconnected or server stopped
+        } finally {
+            viewers.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private void handleSnapshot(HttpExchange exchange) throws IOException {
+        byte[] data;
+        snapshotRequests.incrementAndGet();
+        try {
+            synchronized (jpegLock) {
+                final long sequence = jpegSequence;
+                final long deadline = System.currentTimeMillis() + SNAPSHOT_TIMEOUT_MILLIS;
+                long remaining = SNAPSHOT_TIMEOUT_MILLIS;
+                while (running && jpegSequence == sequence && remaining > 0) {
+                    jpegLock.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                data = jpegSequence != sequence ? jpeg : null;
+            }
+        } catch (InterruptedException e) {
+            data = null;
+        } finally {
+            snapshotRequests.decrementAndGet();
+        }
+
+        if (data == null) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache, no-store");
+        exchange.sendResponseHeaders(200, data.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    private void handleIndex(HttpExchange exchange) throws IOException {
+        final byte[] page = "<!DOCTYPE html><html><body style=\"margin:0;background:#000\"><img src=\"/stream\" style=\"max-width:100%\"></body></html>"
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.sendResponseHeaders(200, page.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(page);
+        }
+    }
+}
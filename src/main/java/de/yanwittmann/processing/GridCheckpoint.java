@@ -0,0 +1,214 @@
+package de.yanwittmann.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Periodic binary checkpoint of the grid state in a memory-mapped file.
+ * <p>
+ * The file starts with a header describing the grid, followed by two slots that are written alternately, so that the
+ * previous checkpoint stays intact while the next one is written. The sequence number of a slot is cleared before and
+ * set after its content is written, the slot with the highest sequence number is the latest complete checkpoint.
+ * Every slot stores the cell values as consecutive arrays in cell order {@code x * rows + y} to allow bulk reads.
+ */
+class GridCheckpoint {
+
+    private static final int MAGIC = 0x50494743; // "PIGC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    static final int MAX_PARAMETERS = 32;
+
+    private final int cols, rows, glyphCount;
+    private final int slotSize;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "grid-checkpoint-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean writing = new AtomicBoolean(false);
+    private final State state;
+    private long sequence;
+
+    /**
+     * Opens the checkpoint file for writing, an existing file is only kept if it was written for the same grid.
+     */
+    GridCheckpoint(File file, int cols, int rows, int glyphCount) throws IOException {
+        this.cols = cols;
+        this.rows = rows;
+        this.glyphCount = glyphCount;
+        slotSize = slotSize(cols * rows);
+        state = new State(cols * rows);
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long fileSize = HEADER_SIZE + 2L * slotSize;
+        if (!hasHeader(channel, cols, rows, glyphCount)) {
+            channel.truncate(0);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, cols);
+        buffer.putInt(12, rows);
+        buffer.putInt(16, glyphCount);
+        buffer.putInt(20, slotSize);
+        sequence = Math.max(buffer.getLong(HEADER_SIZE), buffer.getLong(HEADER_SIZE + slotSize));
+    }
+
+    /**
+     * Retrieves the state buffer to fill for the next checkpoint, or null if the previous one is still being written.
+     */
+    State acquire() {
+        return writing.get() ? null : state;
+    }
+
+    /**
+     * Writes the acquired state in the background.
+     */
+    void submit(State state) {
+        writing.set(true);
+        final long nextSequence = ++sequence;
+        writer.submit(() -> {
+            try {
+                final int slotOffset = HEADER_SIZE + (int) (nextSequence % 2) * slotSize;
+                buffer.putLong(slotOffset, 0);
+                buffer.force(slotOffset, 8);
+                write(buffer.duplicate().position(slotOffset), state);
+                buffer.force(slotOffset, slotSize);
+                buffer.putLong(slotOffset, nextSequence);
+                buffer.force(slotOffset, 8);
+            } finally {
+                writing.set(false);
+            }
+        });
+    }
+
+    /**
+     * Waits for a pending write and closes the file.
+     */
+    void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the latest complete checkpoint from the given file.
+     *
+     * @return the checkpoint or null if there is none for a grid of this size and number of grid images
+     */
+    static State readLatest(File file, int cols, int rows, int glyphCount) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (!hasHeader(channel, cols, rows, glyphCount)) {
+                return null;
+            }
+            final int slotSize = slotSize(cols * rows);
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + 2L * slotSize);
+            final long first = buffer.getLong(HEADER_SIZE);
+            final long second = buffer.getLong(HEADER_SIZE + slotSize);
+            if (first == 0 && second == 0) {
+                return null;
+            }
+
+            final State state = new State(cols * rows);
+            read(buffer.position(HEADER_SIZE + (first > second ? 0 : slotSize)), state);
+            return state;
+        }
+    }
+
+    private static boolean hasHeader(FileChannel channel, int cols, int rows, int glyphCount) throws IOException {
+        if (channel.size() != HEADER_SIZE + 2L * slotSize(cols * rows)) {
+            return false;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        return header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+                && header.getInt(8) == cols && header.getInt(12) == rows && header.getInt(16) == glyphCount;
+    }
+
+    private static int slotSize(int cells) {
+        // sequence, image index, frame time, noise and random seed, parameters, then five values per cell
+        return 8 + 4 + 4 + 8 + 8 + 4 * MAX_PARAMETERS + 5 * 4 * cells;
+    }
+
+    private static void write(ByteBuffer slot, State state) {
+        slot.putLong(0);
+        slot.putInt(state.imageIndex);
+        slot.putInt(state.frameMillis);
+        slot.putLong(state.noiseSeed);
+        slot.putLong(state.randomSeed);
+        slot.asFloatBuffer().put(state.parameters);
+        slot.position(slot.position() + 4 * MAX_PARAMETERS);
+        slot.asIntBuffer().put(state.colors);
+        slot.position(slot.position() + 4 * state.colors.length);
+        slot.asIntBuffer().put(state.glyphs);
+        slot.position(slot.position() + 4 * state.glyphs.length);
+        slot.asFloatBuffer().put(state.displacementX);
+        slot.position(slot.position() + 4 * state.displacementX.length);
+        slot.asFloatBuffer().put(state.displacementY);
+        slot.position(slot.position() + 4 * state.displacementY.length);
+        slot.asFloatBuffer().put(state.lastImageInfluence);
+    }
+
+    private static void read(ByteBuffer slot, State state) {
+        slot.getLong();
+        state.imageIndex = slot.getInt();
+        state.frameMillis = slot.getInt();
+        state.noiseSeed = slot.getLong();
+        state.randomSeed = slot.getLong();
+        slot.asFloatBuffer().get(state.parameters);
+        slot.position(slot.position() + 4 * MAX_PARAMETERS);
+        slot.asIntBuffer().get(state.colors);
+        slot.position(slot.position() + 4 * state.colors.length);
+        slot.asIntBuffer().get(state.glyphs);
+        slot.position(slot.position() + 4 * state.glyphs.length);
+        slot.asFloatBuffer().get(state.displacementX);
+        slot.position(slot.position() + 4 * state.displacementX.length);
+        slot.asFloatBuffer().get(state.displacementY);
+        slot.position(slot.position() + 4 * state.displacementY.length);
+        slot.asFloatBuffer().get(state.lastImageInfluence);
+    }
+
+    /**
+     * Simulation state of a checkpoint, the cell arrays are indexed by {@code x * rows + y}.
+     * Unused parameters are zero, grid images are stored as index into the grid images or -1 for none.
+     */
+    static class State {
+        int imageIndex;
+        int frameMillis;
+        long noiseSeed;
+        long randomSeed;
+        final float[] parameters = new float[MAX_PARAMETERS];
+        final int[] colors;
+        final int[] glyphs;
+        final float[] displacementX, displacementY;
+        final float[] lastImageInfluence;
+
+        State(int cells) {
+            colors = new int[cells];
+            glyphs = new int[cells];
+            displacementX = new float[cells];
+            displacementY = new float[cells];
+            lastImageInfluence = new float[cells];
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package de.yanwittmann.processing;
+
+/**
+ * Immutable snapshot of all parameters that control the grid updates, published once per frame so that the update
+ * pass and any worker threads read a consistent set of values without locking.
+ * The values derived from the neighbor radius are calculated once when the snapshot is created.
+ * <p>
+ * Presets are stored as ready snapshots as well, see {@link #preset(int)}. They can be switched to directly or blended
+ * over time with {@link #lerp(GridParameters, float)}.
+ */
+class GridParameters {
+
+    final float noiseScale;
+    final float noiseTimeScale;
+
+    final float minUpdateProbability;
+    final float maxUpdateProbability;
+
+    final int neighborRadius;
+    final float neighborInfluence;
+    final float neighborCount; // derived from neighborRadius
+    final float influenceIncrement; // derived from neighborInfluence and neighborCount
+
+    final int specialEffectType;
+    final float specialEffectInfluenceRadiusLow;
+    final float specialEffectInfluenceRadiusHigh;
+    final float setLastImageInfluence;
+    final float lastImageInfluenceReductionChance;
+    final float lastImageInfluenceReductionLow;
+    final float lastImageInfluenceReductionHigh;
+    final float specialEffectDisplacementStrength;
+
+    final int globalDisplacementType;
+
+    final boolean debugVisualizeNoise;
+    final boolean mosaicMode;
+
+    private GridParameters(Builder builder) {
+        noiseScale = builder.noiseScale;
+        noiseTimeScale = builder.noiseTimeScale;
+        minUpdateProbability = builder.minUpdateProbability;
+        maxUpdateProbability = builder.maxUpdateProbability;
+        neighborRadius = builder.neighborRadius;
+        neighborInfluence = builder.neighborInfluence;
+        neighborCount = (neighborRadius * 2 + 1) * (neighborRadius * 2 + 1) - 1;
+        influenceIncrement = neighborInfluence / neighborCount;
+        specialEffectType = builder.specialEffectType;
+        specialEffectInfluenceRadiusLow = builder.specialEffectInfluenceRadiusLow;
+        specialEffectInfluenceRadiusHigh = builder.specialEffectInfluenceRadiusHigh;
+        setLastImageInfluence = builder.setLastImageInfluence;
+        lastImageInfluenceReductionChance = builder.lastImageInfluenceReductionChance;
+        lastImageInfluenceReductionLow = builder.lastImageInfluenceReductionLow;
+        lastImageInfluenceReductionHigh = builder.lastImageInfluenceReductionHigh;
+        specialEffectDisplacementStrength = builder.specialEffectDisplacementStrength;
+        globalDisplacementType = builder.globalDisplacementType;
+        debugVisualizeNoise = builder.debugVisualizeNoise;
+        mosaicMode = builder.mosaicMode;
+    }
+
+    Builder toBuilder() {
+        return new Builder()
+                .noiseScale(noiseScale)
+                .noiseTimeScale(noiseTimeScale)
+                .minUpdateProbability(minUpdateProbability)
+                .maxUpdateProbability(maxUpdateProbability)
+                .neighborRadius(neighborRadius)
+                .neighborInfluence(neighborInfluence)
+                .specialEffectType(specialEffectType)
+                .specialEffectInfluenceRadiusLow(specialEffectInfluenceRadiusLow)
+                .specialEffectInfluenceRadiusHigh(specialEffectInfluenceRadiusHigh)
+                .setLastImageInfluence(setLastImageInfluence)
+                .lastImageInfluenceReductionChance(lastImageInfluenceReductionChance)
+                .lastImageInfluenceReductionLow(lastImageInfluenceReductionLow)
+                .lastImageInfluenceReductionHigh(lastImageInfluenceReductionHigh)
+                .specialEffectDisplacementStrength(specialEffectDisplacementStrength)
+                .globalDisplacementType(globalDisplacementType)
+                .debugVisualizeNoise(debugVisualizeNoise)
+                .mosaicMode(mosaicMode);
+    }
+
+    /**
+     * Creates the preset with the given number, 1 to 9. Presets only cover the update and special effect settings,
+     * {@link #withPreset(GridParameters)} keeps the remaining values of the current parameters.
+     */
+    static GridParameters preset(int index) {
+        final Builder builder = new Builder().specialEffectType(1);
+        if (index == 2) {
+            builder.minUpdateProbability(0.00f).maxUpdateProbability(0.04f).neighborRadius(2).neighborInfluence(9f);
+        } else if (index == 3) {
+            builder.minUpdateProbability(0.00f).maxUpdateProbability(0.04f).neighborRadius(3).neighborInfluence(9f);
+        } else if (index == 4) {
+            builder.specialEffectType(2).specialEffectInfluenceRadiusLow(3).specialEffectInfluenceRadiusHigh(8);
+        } else if (index == 5) {
+            builder.specialEffectType(3).specialEffectInfluenceRadiusLow(3).specialEffectInfluenceRadiusHigh(8);
+        } else if (index == 6) {
+            builder.specialEffectType(-1);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Combines the values covered by the given preset with the remaining values of this snapshot.
+     */
+    GridParameters withPreset(GridParameters preset) {
+        return preset.toBuilder()
+                .specialEffectDisplacementStrength(specialEffectDisplacementStrength)
+                .globalDisplacementType(globalDisplacementType)
+                .debugVisualizeNoise(debugVisualizeNoise)
+                .mosaicMode(mosaicMode)
+                .build();
+    }
+
+    /**
+     * Interpolates between this and the target snapshot. Continuous values are blended linearly, discrete values and
+     * toggles switch to the target halfway through.
+     */
+    GridParameters lerp(GridParameters target, float t) {
+        if (t <= 0) {
+            return this;
+        } else if (t >= 1) {
+            return target;
+        }
+        final GridParameters discrete = t < 0.5f ? this : target;
+        return new Builder()
+                .noiseScale(lerp(noiseScale, target.noiseScale, t))
+                .noiseTimeScale(lerp(noiseTimeScale, target.noiseTimeScale, t))
+                .minUpdateProbability(lerp(minUpdateProbability, target.minUpdateProbability, t))
+                .maxUpdateProbability(lerp(maxUpdateProbability, target.maxUpdateProbability, t))
+                .neighborRadius(discrete.neighborRadius)
+                .neighborInfluence(lerp(neighborInfluence, target.neighborInfluence, t))
+                .specialEffectType(discrete.specialEffectType)
+                .specialEffectInfluenceRadiusLow(lerp(specialEffectInfluenceRadiusLow, target.specialEffectInfluenceRadiusLow, t))
+                .specialEffectInfluenceRadiusHigh(lerp(specialEffectInfluenceRadiusHigh, target.specialEffectInfluenceRadiusHigh, t))
+                .setLastImageInfluence(lerp(setLastImageInfluence, target.setLastImageInfluence, t))
+                .lastImageInfluenceReductionChance(lerp(lastImageInfluenceReductionChance, target.lastImageInfluenceReductionChance, t))
+                .lastImageInfluenceReductionLow(lerp(lastImageInfluenceReductionLow, target.lastImageInfluenceReductionLow, t))
+                .lastImageInfluenceReductionHigh(lerp(lastImageInfluenceReductionHigh, target.lastImageInfluenceReductionHigh, t))
+                .specialEffectDisplacementStrength(lerp(specialEffectDisplacementStrength, target.specialEffectDisplacementStrength, t))
+                .globalDisplacementType(discrete.globalDisplacementType)
+                .debugVisualizeNoise(discrete.debugVisualizeNoise)
+                .mosaicMode(discrete.mosaicMode)
+                .build();
+    }
+
+    private static float lerp(float start, float stop, float t) {
+        return start + (stop - start) * t;
+    }
+
+    /**
+     * Serializes the parameters for input traces and checkpoints, new values have to be appended to stay compatible.
+     */
+    float[] toArray() {
+        return new float[]{
+                noiseScale, noiseTimeScale,
+                minUpdateProbability, maxUpdateProbability,
+                neighborRadius, neighborCount, influenceIncrement,
+                specialEffectType, specialEffectInfluenceRadiusLow, specialEffectInfluenceRadiusHigh,
+                setLastImageInfluence, lastImageInfluenceReductionChance, lastImageInfluenceReductionLow, lastImageInfluenceReductionHigh,
+                specialEffectDisplacementStrength, globalDisplacementType,
+                debugVisualizeNoise ? 1 : 0, mosaicMode ? 1 : 0
+        };
+    }
+
+    static GridParameters fromArray(float[] values) {
+        return new Builder()
+                .noiseScale(values[0])
+                .noiseTimeScale(values[1])
+                .minUpdateProbability(values[2])
+                .maxUpdateProbability(values[3])
+                .neighborRadius((int) values[4])
+                .neighborInfluence(values[6] * values[5])
+                .specialEffectType((int) values[7])
+                .specialEffectInfluenceRadiusLow(values[8])
+                .specialEffectInfluenceRadiusHigh(values[9])
+                .setLastImageInfluence(values[10])
+                .lastImageInfluenceReductionChance(values[11])
+                .lastImageInfluenceReductionLow(values[12])
+                .lastImageInfluenceReductionHigh(values[13])
+                .specialEffectDisplacementStrength(values[14])
+                .globalDisplacementType((int) values[15])
+                .debugVisualizeNoise(values[16] != 0)
+                .mosaicMode(values[17] != 0)
+                .build();
+    }
+
+    /**
+     * Mutable builder, initialized with the default parameters.
+     */
+    static class Builder {
+        private float noiseScale = 0.03f;
+        private float noiseTimeScale = 0.2f;
+        private float minUpdateProbability = 0.01f;
+        private float maxUpdateProbability = 0.05f;
+        private int neighborRadius = 1;
+        private float neighborInfluence = 18f;
+        private int specialEffectType = 0;
+        private float specialEffectInfluenceRadiusLow = 0;
+        private float specialEffectInfluenceRadiusHigh = 3;
+        private float setLastImageInfluence = 1f;
+        private float lastImageInfluenceReductionChance = 0.5f;
+        private float lastImageInfluenceReductionLow = 0.0f;
+        private float lastImageInfluenceReductionHigh = 0.3f;
+        private float specialEffectDisplacementStrength = 10f;
+        private int globalDisplacementType = -1;
+        private boolean debugVisualizeNoise = false;
+        private boolean mosaicMode = false;
+
+        Builder noiseScale(float noiseScale) {
+            this.noiseScale = noiseScale;
+            return this;
+        }
+
+        Builder noiseTimeScale(float noiseTimeScale) {
+            this.noiseTimeScale = noiseTimeScale;
+            return this;
+        }
+
+        Builder minUpdateProbability(float minUpdateProbability) {
+            this.minUpdateProbability = minUpdateProbability;
+            return this;
+        }
+
+        Builder maxUpdateProbability(float maxUpdateProbability) {
+            this.maxUpdateProbability = maxUpdateProbability;
+            return this;
+        }
+
+        Builder neighborRadius(int neighborRadius) {
+            this.neighborRadius = neighborRadius;
+            return this;
+        }
+
+        /**
+         * Total update probability a cell distributes among its neighbors.
+         */
+        Builder neighborInfluence(float neighborInfluence) {
+            this.neighborInfluence = neighborInfluence;
+            return this;
+        }
+
+        Builder specialEffectType(int specialEffectType) {
+            this.specialEffectType = specialEffectType;
+            return this;
+        }
+
+        Builder specialEffectInfluenceRadiusLow(float specialEffectInfluenceRadiusLow) {
+            this.specialEffectInfluenceRadiusLow = specialEffectInfluenceRadiusLow;
+            return this;
+        }
+
+        Builder specialEffectInfluenceRadiusHigh(float specialEffectInfluenceRadiusHigh) {
+            this.specialEffectInfluenceRadiusHigh = specialEffectInfluenceRadiusHigh;
+            return this;
+        }
+
+        Builder setLastImageInfluence(float setLastImageInfluence) {
+            this.setLastImageInfluence = setLastImageInfluence;
+            return this;
+        }
+
+        Builder lastImageInfluenceReductionChance(float lastImageInfluenceReductionChance) {
+            this.lastImageInfluenceReductionChance = lastImageInfluenceReductionChance;
+            return this;
+        }
+
+        Builder lastImageInfluenceReductionLow(float lastImageInfluenceReductionLow) {
+            this.lastImageInfluenceReductionLow = lastImageInfluenceReductionLow;
+            return this;
+        }
+
+        Builder lastImageInfluenceReductionHigh(float lastImageInfluenceReductionHigh) {
+            this.lastImageInfluenceReductionHigh = lastImageInfluenceReductionHigh;
+            return this;
+        }
+
+        Builder specialEffectDisplacementStrength(float specialEffectDisplacementStrength) {
+            this.specialEffectDisplacementStrength = specialEffectDisplacementStrength;
+            return this;
+        }
+
+        Builder globalDisplacementType(int globalDisplacementType) {
+            this.globalDisplacementType = globalDisplacementType;
+            return this;
+        }
+
+        Builder debugVisualizeNoise(boolean debugVisualizeNoise) {
+            this.debugVisualizeNoise = debugVisualizeNoise;
+            return this;
+        }
+
+        Builder mosaicMode(boolean mosaicMode) {
+            this.mosaicMode = mosaicMode;
+            return this;
+        }
+
+        GridParameters build() {
+            return new GridParameters(this);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package de.yanwittmann.processing;
+
+import java.util.Arrays;
+
+/**
+ * Collects the special effect influence of any number of pointers per frame.
+ * <p>
+ * Every pointer stamps a disk around its grid cell, the half width of the disk per row is precomputed once per radius.
+ * Radii are clamped to the grid diagonal, larger disks cover the whole grid from any cell anyway.
+ * Overlapping stamps are merged into per cell accumulators, so that the effects can afterwards be applied in a single
+ * pass over the affected cells. Cells are identified by their index {@code x * rows + y}.
+ */
+class InfluenceEngine {
+
+    private final int cols, rows;
+    private final int gridSize;
+    private final int maxRadius;
+
+    // Half width of the disk for every distance to its center column, indexed by radius
+    private int[][] stencils = new int[0][];
+
+    // Per cell accumulators, only valid for cells whose stamp matches the current frame
+    private final int[] cellFrame;
+    private final boolean[] displaced;
+    private final float[] displacementX, displacementY;
+    private final int[] touchedCells;
+    private int touchedCount = 0;
+    private int frame = 0;
+
+    InfluenceEngine(int cols, int rows, int gridSize) {
+        this.cols = cols;
+        this.rows = rows;
+        this.gridSize = gridSize;
+        maxRadius = (int) Math.ceil(Math.sqrt((double) cols * cols + (double) rows * rows));
+        cellFrame = new int[cols * rows];
+        displaced = new boolean[cols * rows];
+        displacementX = new float[cols * rows];
+        displacementY = new float[cols * rows];
+        touchedCells = new int[cols * rows];
+    }
+
+    /**
+     * Discards all stamps of the previous frame.
+     */
+    void beginFrame() {
+        frame++;
+        touchedCount = 0;
+    }
+
+    /**
+     * Stamps the influence of a pointer that moved from the last to the current position, in canvas coordinates.
+     * If {@code displace} is set, the affected cells accumulate a displacement against the direction of movement,
+     * unless the pointer did not move or jumped further than {@code maxDistance}.
+     */
+    void stamp(Pointer pointer, int radius, boolean displace, float displacementStrength, float maxDistance) {
+        if (radius < 0 || !Float.isFinite(pointer.x) || !Float.isFinite(pointer.y) || !Float.isFinite(pointer.lastX) || !Float.isFinite(pointer.lastY)) {
+            return;
+        }
+        radius = Math.min(radius, maxRadius);
+        final int[] stencil = getStencil(radius);
+        // Positions further off the grid than the largest radius cannot touch any cell
+        final int pointerX = (int) Math.max(-maxRadius - 1, Math.min(cols + maxRadius, pointer.x / gridSize));
+        final int pointerY = (int) Math.max(-maxRadius - 1, Math.min(rows + maxRadius, pointer.y / gridSize));
+
+        final float dx = pointer.x - pointer.lastX;
+        final float dy = pointer.y - pointer.lastY;
+        final float distance = (float) Math.sqrt(dx * dx + dy * dy);
+        final boolean displacing = displace && distance != 0 && distance < maxDistance;
+        final float directionX = displacing ? dx / distance : 0;
+        final float directionY = displacing ? dy / distance : 0;
+
+        final int minX = Math.max(pointerX - radius, 0);
+        final int maxX = Math.min(pointerX + radius, cols - 1);
+        for (int x = minX; x <= maxX; x++) {
+            final int halfHeight = stencil[Math.abs(x - pointerX)];
+            final int minY = Math.max(pointerY - halfHeight, 0);
+            final int maxY = Math.min(pointerY + halfHeight, rows - 1);
+            for (int y = minY; y <= maxY; y++) {
+                stampCell(pointer, x, y, displacing, directionX, directionY, displacementStrength);
+            }
+        }
+    }
+
+    private void stampCell(Pointer pointer, int x, int y, boolean displacing, float directionX, float directionY, float displacementStrength) {
+        final int cell = x * rows + y;
+        if (cellFrame[cell] != frame) {
+            cellFrame[cell] = frame;
+            displaced[cell] = false;
+            displacementX[cell] = 0;
+            displacementY[cell] = 0;
+            touchedCells[touchedCount++] = cell;
+        }
+
+        if (displacing) {
+            // Push against the movement, plus a push along it that grows with the distance to the pointer
+            final float cellDx = pointer.x - x * gridSize;
+            final float cellDy = pointer.y - y * gridSize;
+            final float falloff = (float) Math.sqrt(cellDx * cellDx + cellDy * cellDy) / 100 * 5;
+            displaced[cell] = true;
+            displacementX[cell] += -directionX * displacementStrength + directionX * falloff;
+            displacementY[cell] += -directionY * displacementStrength + directionY * falloff;
+        }
+    }
+
+    int getTouchedCount() {
+        return touchedCount;
+    }
+
+    int getTouchedCell(int i) {
+        return touchedCells[i];
+    }
+
+    boolean isDisplaced(int cell) {
+        return displaced[cell];
+    }
+
+    float getDisplacementX(int cell) {
+        return displacementX[cell];
+    }
+
+    float getDisplacementY(int cell) {
+        return displacementY[cell];
+    }
+
+    private int[] getStencil(int radius) {
+        if (radius >= stencils.length) {
+            stencils = Arrays.copyOf(stencils, radius + 1);
+        }
+        if (stencils[radius] == null) {
+            final int[] halfHeights = new int[radius + 1];
+            for (int dx = 0; dx <= radius; dx++) {
+                halfHeights[dx] = (int) Math.sqrt(radius * radius - dx * dx);
+            }
+            stencils[radius] = halfHeights;
+        }
+        return stencils[radius];
+    }
+
+    /**
+     * Position of a pointer in the current and the previous frame, in canvas coordinates.
+     */
+    static class Pointer {
+        final float x, y;
+        final float lastX, lastY;
+
+        Pointer(float x, float y, float lastX, float lastY) {
+            this.x = x;
+            this.y = y;
+            this.lastX = lastX;
+            this.lastY = lastY;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package de.yanwittmann.processing;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary trace of the inputs of a recording session: the random seed, the initial parameters and, per frame,
+ * the frame time, the mouse position, the external pointers and all key and controller events that happened since the
+ * previous frame.
+ * Replaying a trace with the same input images reproduces the recorded session exactly.
+ */
+class InputTrace {
+
+    private static final int MAGIC = 0x50494754; // "PIGT"
+    private static final int VERSION = 2;
+
+    private static final byte EVENT_KEY = 0;
+    private static final byte EVENT_CONTROLLER = 1;
+
+    final long seed;
+    final int width, height;
+    final int imageIndex;
+    final int lastMouseX, lastMouseY;
+    final float[] parameters;
+    final List<Frame> frames = new ArrayList<>();
+
+    InputTrace(long seed, int width, int height, int imageIndex, int lastMouseX, int lastMouseY, float[] parameters) {
+        this.seed = seed;
+        this.width = width;
+        this.height = height;
+        this.imageIndex = imageIndex;
+        this.lastMouseX = lastMouseX;
+        this.lastMouseY = lastMouseY;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Reads a complete trace into memory, so that replaying it is not influenced by file access.
+     */
+    static InputTrace read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an input trace file: " + file);
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported input trace version " + version + " in " + file);
+            }
+
+            final long seed = in.readLong();
+            final int width = in.readInt();
+            final int height = in.readInt();
+            final int imageIndex = in.readInt();
+            final int lastMouseX = in.readShort();
+            final int lastMouseY = in.readShort();
+            final float[] parameters = new float[in.readUnsignedByte()];
+            for (int i = 0; i < parameters.length; i++) {
+                parameters[i] = in.readFloat();
+            }
+            final InputTrace trace = new InputTrace(seed, width, height, imageIndex, lastMouseX, lastMouseY, parameters);
+
+            while (in.readBoolean()) {
+                final Frame frame = new Frame(in.readInt(), in.readShort(), in.readShort());
+                final int eventCount = in.readUnsignedByte();
+                for (int i = 0; i < eventCount; i++) {
+                    final byte type = in.readByte();
+                    if (type == EVENT_KEY) {
+                        frame.events.add(Event.key(in.readChar(), in.readInt()));
+                    } else if (type == EVENT_CONTROLLER) {
+                        frame.events.add(Event.controller(in.readUTF(), in.readFloat()));
+                    } else {
+                        throw new IOException("Unknown event type " + type + " in " + file);
+                    }
+                }
+                final int pointerCount = in.readUnsignedByte();
+                for (int i = 0; i < pointerCount; i++) {
+                    frame.pointers.add(new InfluenceEngine.Pointer(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat()));
+                }
+                trace.frames.add(frame);
+            }
+            return trace;
+        }
+    }
+
+    /**
+     * Writes the trace header followed by one frame after another, so that long sessions are not kept in memory.
+     */
+    static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final List<Event> pendingEvents = new ArrayList<>();
+        private int frameCount = 0;
+
+        Writer(File file, InputTrace header) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(header.seed);
+            out.writeInt(header.width);
+            out.writeInt(header.height);
+            out.writeInt(header.imageIndex);
+            out.writeShort(header.lastMouseX);
+            out.writeShort(header.lastMouseY);
+            out.writeByte(header.parameters.length);
+            for (final float parameter : header.parameters) {
+                out.writeFloat(parameter);
+            }
+        }
+
+        /**
+         * Adds an event to the next frame written.
+         */
+        void addEvent(Event event) {
+            pendingEvents.add(event);
+        }
+
+        /**
+         * Writes a frame with the pending events and the given external pointers, of which at most 255 are stored.
+         */
+        void writeFrame(int timeMillis, int mouseX, int mouseY, List<InfluenceEngine.Pointer> pointers) throws IOException {
+            // The event count is stored in a byte, further events are carried over to the next frame
+            final int eventCount = Math.min(pendingEvents.size(), 255);
+            out.writeBoolean(true);
+            out.writeInt(timeMillis);
+            out.writeShort(mouseX);
+            out.writeShort(mouseY);
+            out.writeByte(eventCount);
+            for (int i = 0; i < eventCount; i++) {
+                final Event event = pendingEvents.get(i);
+                if (event.controller == null) {
+                    out.writeByte(EVENT_KEY);
+                    out.writeChar(event.key);
+                    out.writeInt(event.keyCode);
+                } else {
+                    out.writeByte(EVENT_CONTROLLER);
+                    out.writeUTF(event.controller);
+                    out.writeFloat(event.value);
+                }
+            }
+            pendingEvents.subList(0, eventCount).clear();
+
+            final int pointerCount = Math.min(pointers.size(), 255);
+            out.writeByte(pointerCount);
+            for (int i = 0; i < pointerCount; i++) {
+                final InfluenceEngine.Pointer pointer = pointers.get(i);
+                out.writeFloat(pointer.x);
+                out.writeFloat(pointer.y);
+                out.writeFloat(pointer.lastX);
+                out.writeFloat(pointer.lastY);
+            }
+            frameCount++;
+        }
+
+        int getFrameCount() {
+            return frameCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.writeBoolean(false);
+            out.close();
+        }
+    }
+
+    static class Frame {
+        final int timeMillis;
+        final int mouseX, mouseY;
+        final List<Event> events = new ArrayList<>(0);
+        final List<InfluenceEngine.Pointer> pointers = new ArrayList<>(0);
+
+        Frame(int timeMillis, int mouseX, int mouseY) {
+            this.timeMillis = timeMillis;
+            this.mouseX = mouseX;
+            this.mouseY = mouseY;
+        }
+    }
+
+    /**
+     * Either a key press or a controller value change, if {@link #controller} is set.
+     */
+    static class Event {
+        final char key;
+        final int keyCode;
+        final String controller;
+        final float value;
+
+        private Event(char key, int keyCode, String controller, float value) {
+            this.key = key;
+            this.keyCode = keyCode;
+            this.controller = controller;
+            this.value = value;
+        }
+
+        static Event key(char key, int keyCode) {
+            return new Event(key, keyCode, null, 0);
+        }
+
+        static Event controller(String controller, float value) {
+            return new Event((char) 0, 0, controller, value);
+        }
+    }
+}
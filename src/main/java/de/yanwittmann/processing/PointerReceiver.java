@@ -0,0 +1,116 @@
+package de.yanwittmann.processing;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives pointer positions from a local tracking process via UDP, bound to the loopback interface only.
+ * <p>
+ * Every datagram contains one or more lines of the form {@code <id> <x> <y>} in canvas coordinates.
+ * Positions that are not finite or more than one canvas size off the canvas are dropped.
+ * Pointers that have not been updated within the timeout are removed.
+ */
+class PointerReceiver {
+
+    private final DatagramSocket socket;
+    private final Thread receiverThread;
+    private final long timeoutMillis;
+    private final int canvasWidth, canvasHeight;
+
+    // Latest position and receive time per pointer id, written by the receiver thread
+    private final Map<String, Position> latestPositions = new ConcurrentHashMap<>();
+
+    // Positions handed out in the previous frame, only accessed from the render loop
+    private final Map<String, Position> previousPositions = new HashMap<>();
+
+    PointerReceiver(int port, long timeoutMillis, int canvasWidth, int canvasHeight) throws IOException {
+        this.timeoutMillis = timeoutMillis;
+        this.canvasWidth = canvasWidth;
+        this.canvasHeight = canvasHeight;
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        receiverThread = new Thread(this::receive, "pointer-receiver");
+        receiverThread.setDaemon(true);
+    }
+
+    void start() {
+        receiverThread.start();
+    }
+
+    void stop() {
+        socket.close();
+    }
+
+    /**
+     * Collects all active pointers together with their position in the previous call. Only called from the render loop.
+     */
+    List<InfluenceEngine.Pointer> collect() {
+        final long now = System.currentTimeMillis();
+        final List<InfluenceEngine.Pointer> pointers = new ArrayList<>(latestPositions.size());
+        for (final Map.Entry<String, Position> entry : latestPositions.entrySet()) {
+            final Position position = entry.getValue();
+            if (now - position.receivedMillis > timeoutMillis) {
+                latestPositions.remove(entry.getKey(), position);
+                continue;
+            }
+            final Position previous = previousPositions.getOrDefault(entry.getKey(), position);
+            pointers.add(new InfluenceEngine.Pointer(position.x, position.y, previous.x, previous.y));
+            previousPositions.put(entry.getKey(), position);
+        }
+        previousPositions.keySet().retainAll(latestPositions.keySet());
+        return pointers;
+    }
+
+    private void receive() {
+        final byte[] buffer = new byte[4096];
+        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                // Socket closed
+                return;
+            }
+
+            final String message = new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
+            for (final String line : message.split("\n")) {
+                final String[] parts = line.trim().split("\\s+");
+                if (parts.length != 3) {
+                    continue;
+                }
+                final float x, y;
+                try {
+                    x = Float.parseFloat(parts[1]);
+                    y = Float.parseFloat(parts[2]);
+                } catch (NumberFormatException e) {
+                    // Ignore malformed lines
+                    continue;
+                }
+                if (isNearCanvas(x, y)) {
+                    latestPositions.put(parts[0], new Position(x, y, System.currentTimeMillis()));
+                }
+            }
+        }
+    }
+
+    private boolean isNearCanvas(float x, float y) {
+        // Also rejects NaN and infinite values, as all comparisons with NaN are false
+        return x >= -canvasWidth && x <= 2 * canvasWidth && y >= -canvasHeight && y <= 2 * canvasHeight;
+    }
+
+    private static class Position {
+        final float x, y;
+        final long receivedMillis;
+
+        Position(float x, float y, long receivedMillis) {
+            this.x = x;
+            this.y = y;
+            this.receivedMillis = receivedMillis;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package de.yanwittmann.processing;
+
+import processing.core.PImage;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Renders a snapshot of the grid at an arbitrary output resolution and streams it into a PNG file.
+ * <p>
+ * The PNG writer pulls the image row by row, which is rendered in bands of a fixed number of pixel rows that slice
+ * through the cells. The columns of cells within a band are rendered in parallel, while the next band is already being
+ * prepared, so only two bands are held in memory and memory use only depends on the output width. The grid images are
+ * sampled bilinearly from their native resolution and tinted with the cell color on a black background, the same way
+ * the grid is drawn on the canvas.
+ */
+class PosterExporter {
+
+    private static final int BAND_HEIGHT = 64;
+
+    private final int cols, rows;
+    private final PImage[] cellImages;
+    private final int[] cellColors;
+    private final int width, height;
+
+    /**
+     * @param cellImages grid image of every cell, indexed by {@code x * rows + y}, null for empty cells
+     * @param cellColors tint color of every cell, indexed by {@code x * rows + y}
+     */
+    PosterExporter(int cols, int rows, PImage[] cellImages, int[] cellColors, int width, int height) {
+        this.cols = cols;
+        this.rows = rows;
+        this.cellImages = cellImages;
+        this.cellColors = cellColors;
+        this.width = width;
+        this.height = height;
+
+        for (final PImage image : cellImages) {
+            if (image != null) {
+                image.loadPixels();
+            }
+        }
+    }
+
+    /**
+     * Renders the poster into the given file, reporting the progress in percent whenever it advances.
+     */
+    void export(File file, IntConsumer progress) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        // The image output stream does not truncate an existing file
+        Files.deleteIfExists(file.toPath());
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(file)) {
+            if (output == null) {
+                throw new IOException("Cannot write to " + file);
+            }
+            writer.setOutput(output);
+            writer.write(new BandImage(executor, progress));
+        } finally {
+            writer.dispose();
+            executor.shutdownNow();
+        }
+    }
+
+    private int cellTop(int row) {
+        return (int) ((long) row * height / rows);
+    }
+
+    private int cellLeft(int col) {
+        return (int) ((long) col * width / cols);
+    }
+
+    private int bandCount() {
+        return (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+    }
+
+    /**
+     * Starts rendering one band of pixel rows, with one task per column of cells.
+     */
+    private Band renderBand(ExecutorService executor, int band) {
+        final int top = band * BAND_HEIGHT;
+        final int bottom = Math.min(top + BAND_HEIGHT, height);
+        final Band result = new Band(new int[width * (bottom - top)]);
+
+        for (int col = 0; col < cols; col++) {
+            final int column = col;
+            result.columns.add(executor.submit(() -> renderColumn(result.pixels, top, bottom, column)));
+        }
+        return result;
+    }
+
+    /**
+     * Renders the slices of all cells of a column that overlap the pixel rows {@code [top, bottom)}.
+     */
+    private void renderColumn(int[] band, int top, int bottom, int col) {
+        final int left = cellLeft(col);
+        final int cellWidth = cellLeft(col + 1) - left;
+        int row = (int) ((long) top * rows / height);
+        while (cellTop(row + 1) <= top) {
+            row++;
+        }
+        for (; row < rows && cellTop(row) < bottom; row++) {
+            final int cellTop = cellTop(row);
+            final int cellBottom = cellTop(row + 1);
+            final int cell = col * rows + row;
+            renderCell(band, top, left, cellWidth, cellTop, cellBottom - cellTop,
+                    Math.max(top, cellTop) - cellTop, Math.min(bottom, cellBottom) - cellTop, cellImages[cell], cellColors[cell]);
+        }
+    }
+
+    /**
+     * Renders the cell rows {@code [fromY, toY)} of a cell into the band starting at the output row {@code bandTop}.
+     */
+    private void renderCell(int[] band, int bandTop, int left, int cellWidth, int cellTop, int cellHeight, int fromY, int toY, PImage image, int color) {
+        if (image == null || image.width == 0 || image.height == 0) {
+            return;
+        }
+        final int tintR = (color >> 16) & 0xff;
+        final int tintG = (color >> 8) & 0xff;
+        final int tintB = color & 0xff;
+        final int[] pixels = image.pixels;
+        final boolean hasAlpha = image.format == PImage.ARGB;
+
+        for (int y = fromY; y < toY; y++) {
+            final float v = Math.max(0, (y + 0.5f) * image.height / cellHeight - 0.5f);
+            final int y0 = Math.min((int) v, image.height - 1);
+            final int y1 = Math.min(y0 + 1, image.height - 1);
+            final float fy = v - y0;
+            final int rowStart = (cellTop + y - bandTop) * width + left;
+
+            for (int x = 0; x < cellWidth; x++) {
+                final float u = Math.max(0, (x + 0.5f) * image.width / cellWidth - 0.5f);
+                final int x0 = Math.min((int) u, image.width - 1);
+                final int x1 = Math.min(x0 + 1, image.width - 1);
+                final float fx = u - x0;
+
+                // Interpolate premultiplied colors, which is the glyph drawn onto black
+                final float w00 = (1 - fx) * (1 - fy), w10 = fx * (1 - fy), w01 = (1 - fx) * fy, w11 = fx * fy;
+                final int p00 = pixels[y0 * image.width + x0];
+                final int p10 = pixels[y0 * image.width + x1];
+                final int p01 = pixels[y1 * image.width + x0];
+                final int p11 = pixels[y1 * image.width + x1];
+                final float a00 = hasAlpha ? (p00 >>> 24) / 255f : 1, a10 = hasAlpha ? (p10 >>> 24) / 255f : 1;
+                final float a01 = hasAlpha ? (p01 >>> 24) / 255f : 1, a11 = hasAlpha ? (p11 >>> 24) / 255f : 1;
+                final float r = w00 * a00 * ((p00 >> 16) & 0xff) + w10 * a10 * ((p10 >> 16) & 0xff) + w01 * a01 * ((p01 >> 16) & 0xff) + w11 * a11 * ((p11 >> 16) & 0xff);
+                final float g = w00 * a00 * ((p00 >> 8) & 0xff) + w10 * a10 * ((p10 >> 8) & 0xff) + w01 * a01 * ((p01 >> 8) & 0xff) + w11 * a11 * ((p11 >> 8) & 0xff);
+                final float b = w00 * a00 * (p00 & 0xff) + w10 * a10 * (p10 & 0xff) + w01 * a01 * (p01 & 0xff) + w11 * a11 * (p11 & 0xff);
+
+                band[rowStart + x] = ((int) (r * tintR / 255) << 16) | ((int) (g * tintG / 255) << 8) | (int) (b * tintB / 255);
+            }
+        }
+    }
+
+    /**
+     * Pixels of a band of output rows, complete once all column tasks are done.
+     */
+    private static class Band {
+        final int[] pixels;
+        final List<Future<?>> columns = new ArrayList<>();
+
+        Band(int[] pixels) {
+            this.pixels = pixels;
+        }
+
+        int[] await() throws InterruptedException, ExecutionException {
+            for (final Future<?> column : columns) {
+                column.get();
+            }
+            return pixels;
+        }
+
+        void cancel() {
+            for (final Future<?> column : columns) {
+                column.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Image that renders its rows on demand, band by band, in the order requested by the PNG writer.
+     * Every band is exposed as one tile.
+     */
+    private class BandImage implements RenderedImage {
+        private final ExecutorService executor;
+        private final IntConsumer progress;
+        private final DirectColorModel colorModel = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+        private int currentBand = -1;
+        private int[] currentPixels;
+        private Band nextBand;
+        private int reportedPercent = -1;
+
+        BandImage(ExecutorService executor, IntConsumer progress) {
+            this.executor = executor;
+            this.progress = progress;
+            nextBand = renderBand(executor, 0);
+        }
+
+        private int[] getBand(int band) {
+            if (band != currentBand) {
+                try {
+                    if (band != currentBand + 1) {
+                        // Bands are requested in order, anything else is rendered on its own
+                        if (nextBand != null) {
+                            nextBand.cancel();
+                        }
+                        nextBand = renderBand(executor, band);
+                    }
+                    currentPixels = nextBand.await();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new RuntimeException("Failed to render poster band " + band, e);
+                }
+                currentBand = band;
+                nextBand = band + 1 < bandCount() ? renderBand(executor, band + 1) : null;
+
+                final int percent = (int) ((long) Math.min((band + 1) * BAND_HEIGHT, height) * 100 / height);
+                if (percent != reportedPercent) {
+                    reportedPercent = percent;
+                    progress.accept(percent);
+                }
+            }
+            return currentPixels;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            final SinglePixelPackedSampleModel sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, rect.width, rect.height, colorModel.getMasks());
+            final WritableRaster raster = Raster.createWritableRaster(sampleModel, new Point(rect.x, rect.y));
+            final int[] target = ((DataBufferInt) raster.getDataBuffer()).getData();
+
+            for (int y = rect.y; y < rect.y + rect.height; y++) {
+                final int[] band = getBand(y / BAND_HEIGHT);
+                System.arraycopy(band, (y % BAND_HEIGHT) * width + rect.x, target, (y - rect.y) * rect.width, rect.width);
+            }
+            return raster;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            final int top = tileY * BAND_HEIGHT;
+            return getData(new Rectangle(0, top, width, Math.min(BAND_HEIGHT, height - top)));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            final Raster data = getData(raster.getBounds());
+            raster.setRect(data);
+            return raster;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, colorModel.getMasks());
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return bandCount();
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return BAND_HEIGHT;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+    }
+}
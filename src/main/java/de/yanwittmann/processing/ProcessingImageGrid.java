@@ -7,9 +7,9 @@ import processing.core.PApplet;
 import processing.core.PImage;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This sketch creates an interactive image grid that applies various visual effects based on user input and noise functions.
@@ -25,15 +25,44 @@ public class ProcessingImageGrid extends PApplet {
 
     // Input images and grid images
     private PImage[] inputImages;
+    private PImage[] inputDetailImages; // input images resized to the mosaic descriptor resolution, see updateCurrentImage
+    private ExecutorService inputImageLoader;
+    private Queue<Map.Entry<Integer, PImage>> loadedInputImages = new ConcurrentLinkedQueue<>();
+    private int pendingInputImages = 0;
     private PImage[] gridImages;
+    private final Map<PImage, Integer> gridImageIndices = new IdentityHashMap<>();
     private float[] gridBrightness;
     private final TreeMap<Float, PImage> brightnessToImageMap = new TreeMap<>();
 
+    // Default values of the editable parameters below, defined by GridParameters.Builder
+    private final GridParameters defaultParameters = new GridParameters.Builder().build();
+
+    // Mosaic mode: grid images are matched by a luminance descriptor of size x size samples instead of their brightness
+    private boolean mosaicMode = defaultParameters.mosaicMode;
+    private final int mosaicDescriptorSize = 3;
+    private PImage[] mosaicGridImages;
+    private VantagePointTree mosaicIndex;
+    // Matched grid image per scaled image cell, computed in the background for every image published in mosaic mode
+    private final ExecutorService mosaicMatcher = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "mosaic-matcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> mosaicMatchTask;
+    private PImage mosaicMatchImage; // scaled image of the last submitted task
+    private volatile Map.Entry<PImage, int[]> mosaicMatches; // keyed by the scaled image the matches belong to
+
     // Current and last images
     private int currentImageIndex = 0;
     private PImage currentImage;
     private PImage lastImage;
     private PImage scaledImage;
+    private PImage detailImage; // current image at the mosaic descriptor resolution
+
+    // Precomputed target colors of the current and last images, covering the whole grid
+    private TargetField scaledField;
+    private TargetField lastField;
+    private final int targetFieldMargin = 8;
 
     // Grid settings
     private final int gridSize = 25;
@@ -41,48 +70,102 @@ public class ProcessingImageGrid extends PApplet {
     private int targetHeight = 900;
     private int cols, rows;
     private GridCell[][] gridCells;
+    private InfluenceEngine influenceEngine;
     private int offsetX;
     private int offsetY;
 
     // Noise settings
-    private float noiseScale = 0.03f;
-    private float noiseTimeScale = 0.2f;
+    private float noiseScale = defaultParameters.noiseScale;
+    private float noiseTimeScale = defaultParameters.noiseTimeScale;
 
     // Update probabilities
-    private float minUpdateProbability = 0.01f;
-    private float maxUpdateProbability = 0.05f;
+    private float minUpdateProbability = defaultParameters.minUpdateProbability;
+    private float maxUpdateProbability = defaultParameters.maxUpdateProbability;
 
-    // Neighbor influence settings
-    private int neighborRadius = 1;
-    private float neighborCount = pow(neighborRadius * 2 + 1, 2) - 1;
-    private float influenceIncrement = 18f / neighborCount;
+    // Neighbor influence settings, the influence is reset to its default whenever the radius is changed in the UI
+    private int neighborRadius = defaultParameters.neighborRadius;
+    private float neighborInfluence = defaultParameters.neighborInfluence;
 
     // Special effect settings
-    private int specialEffectType = 0;
-    private float specialEffectInfluenceRadiusLow = 0;
-    private float specialEffectInfluenceRadiusHigh = 3;
-    private float setLastImageInfluence = 1f;
-    private float lastImageInfluenceReductionChance = 0.5f;
-    private float lastImageInfluenceReductionLow = 0.0f;
-    private float lastImageInfluenceReductionHigh = 0.3f;
-    private float specialEffectDisplacementStrength = 10f;
+    private int specialEffectType = defaultParameters.specialEffectType;
+    private float specialEffectInfluenceRadiusLow = defaultParameters.specialEffectInfluenceRadiusLow;
+    private float specialEffectInfluenceRadiusHigh = defaultParameters.specialEffectInfluenceRadiusHigh;
+    private float setLastImageInfluence = defaultParameters.setLastImageInfluence;
+    private float lastImageInfluenceReductionChance = defaultParameters.lastImageInfluenceReductionChance;
+    private float lastImageInfluenceReductionLow = defaultParameters.lastImageInfluenceReductionLow;
+    private float lastImageInfluenceReductionHigh = defaultParameters.lastImageInfluenceReductionHigh;
+    private float specialEffectDisplacementStrength = defaultParameters.specialEffectDisplacementStrength;
+
+    // External pointers sent by a local tracking process via UDP, -1 for disabled, see PointerReceiver
+    private final int pointerReceiverPort = -1;
+    private PointerReceiver pointerReceiver;
+    private List<InfluenceEngine.Pointer> externalPointers = Collections.emptyList(); // of the current frame
 
     // Global displacement settings
-    private int globalDisplacementType = -1;
+    private int globalDisplacementType = defaultParameters.globalDisplacementType;
 
     // Debug settings
-    private boolean debugVisualizeNoise = false;
+    private boolean debugVisualizeNoise = defaultParameters.debugVisualizeNoise;
+
+    // The fields above are edited by the UI and the keyboard, the grid updates only read the snapshot published from
+    // them once per frame. Presets are precompiled snapshots that are blended in over the transition time.
+    private volatile GridParameters parameters = defaultParameters;
+    private boolean parametersChanged = false;
+    private final GridParameters[] presets = new GridParameters[9];
+    private final float presetTransitionSeconds = 1f;
+    private GridParameters presetTransitionStart;
+    private GridParameters presetTransitionTarget;
+    private int presetTransitionStartMillis = -1;
 
     // ControlP5 UI
     ControlP5 cp5;
     boolean showUI = true;
 
+    // Local MJPEG stream of the canvas for remote monitoring, -1 for disabled, only reachable from localhost
+    private final int frameStreamPort = 8090;
+    private FrameStreamServer frameStream;
+
+    // Periodic checkpoint of the grid state to resume from after a restart, -1 for disabled
+    private final int checkpointSeconds = 10;
+    private final String checkpointFile = "checkpoint.bin";
+    private GridCheckpoint checkpoint;
+    private int lastCheckpointMillis = 0;
+    private int resumeImageIndex = -1;
+
+    // Seeds of the random number generators, the random seed is replaced on every checkpoint to be able to restore it
+    private final Random seedGenerator = new Random();
+    private long noiseSeedValue;
+
+    // Poster export of the current grid state, the height is derived from the grid aspect ratio if set to -1
+    private final int exportWidth = 20000;
+    private final int exportHeight = -1;
+    private final String exportFile = "poster.png";
+    private volatile boolean exporting = false;
+
+    // Input trace recording and replay, the time of the current frame is taken from the trace when replaying
+    private final String traceFile = "trace.bin";
+    private InputTrace.Writer traceWriter;
+    private InputTrace replayTrace;
+    private int frameMillis;
+    private int frameMillisOffset = 0; // continues the noise time of a resumed checkpoint
+
     public static void main(final String[] args) {
-        PApplet.main(ProcessingImageGrid.class);
+        PApplet.main(ProcessingImageGrid.class, args);
     }
 
     @Override
     public void settings() {
+        final String replayFile = findArgument("--replay");
+        if (replayFile != null) {
+            try {
+                replayTrace = InputTrace.read(new File(sketchPath(replayFile)));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read input trace " + replayFile, e);
+            }
+            targetWidth = replayTrace.width;
+            targetHeight = replayTrace.height;
+        }
+
         // Ensure size is a multiple of gridSize
         targetWidth -= targetWidth % gridSize;
         targetHeight -= targetHeight % gridSize;
@@ -96,6 +179,10 @@ public class ProcessingImageGrid extends PApplet {
         surface.setResizable(true);
         background(0);
 
+        for (int i = 0; i < presets.length; i++) {
+            presets[i] = GridParameters.preset(i + 1);
+        }
+
         cp5 = new ControlP5(this);
 
         // Create UI groups for organization
@@ -238,6 +325,13 @@ public class ProcessingImageGrid extends PApplet {
                 .setLabel("Debug Visualize Noise")
                 .moveTo(specialEffectGroup);
 
+        cp5.addToggle("mosaicMode")
+                .setPosition(120, 260)
+                .setSize(50, 20)
+                .setValue(mosaicMode)
+                .setLabel("Mosaic Mode")
+                .moveTo(specialEffectGroup);
+
         // Global Displacement Settings
         cp5.addSlider("globalDisplacementType")
                 .setPosition(10, 20)
@@ -264,13 +358,49 @@ public class ProcessingImageGrid extends PApplet {
                 }
             }, 0, TimeUnit.SECONDS.toMillis(standbySwitchSeconds));
         }
+
+        // Replays run without a visible window and without waiting for the window size to be confirmed
+        if (replayTrace != null) {
+            surface.setVisible(false);
+            state = 1;
+            return;
+        }
+
+        if (frameStreamPort > 0) {
+            try {
+                frameStream = new FrameStreamServer(frameStreamPort, 30, 5, 0.8f);
+                frameStream.start();
+                println("Streaming frames on http://localhost:" + frameStream.getPort() + "/stream");
+            } catch (IOException e) {
+                e.printStackTrace();
+                println("Failed to start frame stream on port " + frameStreamPort);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the value following the given command line argument, or null if it is not present.
+     */
+    private String findArgument(String name) {
+        if (args == null) {
+            return null;
+        }
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
     }
 
     public void controlEvent(ControlEvent theEvent) {
+        if (traceWriter != null && theEvent.isController()) {
+            traceWriter.addEvent(InputTrace.Event.controller(theEvent.getName(), theEvent.getValue()));
+        }
         if (theEvent.isFrom("neighborRadius")) {
-            neighborCount = pow(neighborRadius * 2 + 1, 2) - 1;
-            influenceIncrement = 18f / neighborCount;
+            neighborInfluence = defaultParameters.neighborInfluence;
         }
+        parametersChanged = true;
     }
 
     int lastMouseX = -1;
@@ -296,27 +426,89 @@ public class ProcessingImageGrid extends PApplet {
 
                 loadGridImages();
                 println("Loaded " + gridImages.length + " grid images");
-                loadInputImages();
-                println("Loaded " + inputImages.length + " input images");
+                if (!loadInputImages()) {
+                    return;
+                }
                 prepareGrid();
                 println("Prepared grid with " + cols + "x" + rows + " cells");
                 updateCurrentImage();
                 println("Processed selected image");
 
                 background(0);
+
+                // Pointers are validated against the canvas, which is only fixed at this point
+                if (replayTrace == null && pointerReceiverPort > 0 && pointerReceiver == null) {
+                    try {
+                        pointerReceiver = new PointerReceiver(pointerReceiverPort, 500, targetWidth, targetHeight);
+                        pointerReceiver.start();
+                        println("Receiving pointers on udp://localhost:" + pointerReceiverPort);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        println("Failed to start pointer receiver on port " + pointerReceiverPort);
+                    }
+                }
+
+                if (replayTrace != null) {
+                    awaitInputImages();
+                    runReplay();
+                } else if (checkpointSeconds > 0 && checkpoint == null) {
+                    // Only resumed on the first start, restarting with SPACE keeps the checkpoint file open
+                    noiseSeedValue = seedGenerator.nextLong();
+                    noiseSeed(noiseSeedValue);
+                    restoreCheckpoint();
+                    try {
+                        checkpoint = new GridCheckpoint(new File(sketchPath(checkpointFile)), cols, rows, gridImages.length);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        println("Failed to open checkpoint file " + checkpointFile);
+                    }
+                }
             }
             return;
         }
 
+        if (pendingInputImages > 0) {
+            collectLoadedInputImages();
+        }
+
+        frameMillis = millis() + frameMillisOffset;
+        if (pointerReceiver != null) {
+            externalPointers = pointerReceiver.collect();
+        }
+        publishParameters();
         updateGrid();
         renderGrid();
 
+        // Checkpoints would change the random sequence of a recorded trace
+        if (checkpoint != null && traceWriter == null && frameMillis - lastCheckpointMillis >= checkpointSeconds * 1000) {
+            writeCheckpoint();
+        }
+
+        if (frameStream != null && frameStream.wantsFrame()) {
+            loadPixels();
+            frameStream.offer(pixels, pixelWidth, pixelHeight);
+        }
+
+        if (traceWriter != null) {
+            try {
+                traceWriter.writeFrame(frameMillis, mouseX, mouseY, externalPointers);
+            } catch (IOException e) {
+                e.printStackTrace();
+                println("Failed to write input trace, stopping recording");
+                toggleTraceRecording();
+            }
+        }
+
         lastMouseX = mouseX;
         lastMouseY = mouseY;
     }
 
     @Override
     public void keyPressed() {
+        if (traceWriter != null && key != 't') {
+            traceWriter.addEvent(InputTrace.Event.key(key, keyCode));
+        }
+
         if (keyCode == LEFT) {
             do {
                 currentImageIndex = (currentImageIndex - 1 + inputImages.length) % inputImages.length;
@@ -329,8 +521,16 @@ public class ProcessingImageGrid extends PApplet {
             updateCurrentImage();
         } else if (key == 'n') {
             debugVisualizeNoise = !debugVisualizeNoise;
+            parametersChanged = true;
+        } else if (key == 'm') {
+            mosaicMode = !mosaicMode;
+            parametersChanged = true;
         } else if (key == 's') {
             saveFrame("output.png");
+        } else if (key == 't') {
+            toggleTraceRecording();
+        } else if (key == 'e') {
+            exportPoster();
         } else if (key == ' ') {
             state = 1;
         } else if (key == 'u') {
@@ -339,52 +539,325 @@ public class ProcessingImageGrid extends PApplet {
         } else if (key >= '1' && key <= '9') {
             int setIndex = key - '1' + 1;
 
-            // Restore default values
-            noiseScale = 0.03f;
-            noiseTimeScale = 0.2f;
-            minUpdateProbability = 0.01f;
-            maxUpdateProbability = 0.05f;
-            neighborRadius = 1;
-            neighborCount = pow(neighborRadius * 2 + 1, 2) - 1;
-            influenceIncrement = 18f / neighborCount;
-
-            specialEffectType = 1;
-            specialEffectInfluenceRadiusLow = 0;
-            specialEffectInfluenceRadiusHigh = 3;
-
-            setLastImageInfluence = 1f;
-            lastImageInfluenceReductionChance = 0.5f;
-            lastImageInfluenceReductionLow = 0.0f;
-            lastImageInfluenceReductionHigh = 0.3f;
-
-            if (setIndex == 2) {
-                minUpdateProbability = 0.00f;
-                maxUpdateProbability = 0.04f;
-                neighborRadius = 2;
-                neighborCount = pow(neighborRadius * 2 + 1, 2) - 1;
-                influenceIncrement = 9f / neighborCount;
-            } else if (setIndex == 3) {
-                minUpdateProbability = 0.00f;
-                maxUpdateProbability = 0.04f;
-                neighborRadius = 3;
-                neighborCount = pow(neighborRadius * 2 + 1, 2) - 1;
-                influenceIncrement = 9f / neighborCount;
-            } else if (setIndex == 4) {
-                specialEffectType = 2;
-                specialEffectInfluenceRadiusLow = 3;
-                specialEffectInfluenceRadiusHigh = 8;
-            } else if (setIndex == 5) {
-                specialEffectType = 3;
-                specialEffectInfluenceRadiusLow = 3;
-                specialEffectInfluenceRadiusHigh = 8;
-            } else if (setIndex == 6) {
-                specialEffectType = -1;
-            }
+            // Earlier edits of this frame are part of the transition start and must not end the transition
+            presetTransitionStart = captureParameters();
+            presetTransitionTarget = presetTransitionStart.withPreset(presets[setIndex - 1]);
+            presetTransitionStartMillis = -1;
+            parametersChanged = false;
 
             println("Set " + setIndex);
         }
     }
 
+    /**
+     * Renders the current grid state at the export resolution into the export file in the background.
+     */
+    private void exportPoster() {
+        if (state != 2 || exporting) {
+            return;
+        }
+        exporting = true;
+
+        final PImage[] cellImages = new PImage[cols * rows];
+        final int[] cellColors = new int[cols * rows];
+        for (int x = 0; x < cols; x++) {
+            for (int y = 0; y < rows; y++) {
+                cellImages[x * rows + y] = gridCells[x][y].image;
+                cellColors[x * rows + y] = gridCells[x][y].color;
+            }
+        }
+        final int posterHeight = exportHeight > 0 ? exportHeight : (int) ((long) exportWidth * rows / cols);
+        final PosterExporter exporter = new PosterExporter(cols, rows, cellImages, cellColors, exportWidth, posterHeight);
+
+        final Thread exportThread = new Thread(() -> {
+            println("Exporting " + exportWidth + "x" + posterHeight + " poster to " + exportFile);
+            final long start = System.currentTimeMillis();
+            try {
+                exporter.export(new File(sketchPath(exportFile)), percent -> println("Exported " + percent + " %"));
+                println("Exported poster in " + (System.currentTimeMillis() - start) / 1000 + " s");
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                println("Failed to export poster");
+            } finally {
+                exporting = false;
+            }
+        }, "poster-export");
+        exportThread.setDaemon(true);
+        exportThread.start();
+    }
+
+    /**
+     * Starts recording an input trace from a freshly seeded grid, or finishes the current recording.
+     */
+    private void toggleTraceRecording() {
+        if (traceWriter != null) {
+            try {
+                traceWriter.close();
+                println("Recorded " + traceWriter.getFrameCount() + " frames to " + traceFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            traceWriter = null;
+            return;
+        }
+        if (state != 2) {
+            return;
+        }
+        // Navigation skips images that are not loaded yet, while the replay starts with all images loaded
+        if (pendingInputImages > 0) {
+            println("Cannot record an input trace while input images are still loading");
+            return;
+        }
+
+        // A running preset transition is not part of the trace, finish it right away
+        if (presetTransitionTarget != null) {
+            applyParameters(presetTransitionTarget);
+            presetTransitionTarget = null;
+        }
+
+        final long seed = System.nanoTime();
+        restartSimulation(seed);
+        awaitMosaicMatches();
+        try {
+            final InputTrace header = new InputTrace(seed, width, height, currentImageIndex, lastMouseX, lastMouseY, captureParameters().toArray());
+            traceWriter = new InputTrace.Writer(new File(sketchPath(traceFile)), header);
+            println("Recording input trace to " + traceFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            println("Failed to start recording input trace");
+        }
+    }
+
+    /**
+     * Replays the loaded input trace as fast as possible, reports the frame latency distribution and exits.
+     */
+    private void runReplay() {
+        final InputTrace trace = replayTrace;
+        applyParameters(GridParameters.fromArray(trace.parameters));
+        currentImageIndex = trace.imageIndex;
+        restartSimulation(trace.seed);
+        lastMouseX = trace.lastMouseX;
+        lastMouseY = trace.lastMouseY;
+
+        final long[] latencies = new long[trace.frames.size()];
+        final long replayStart = System.nanoTime();
+        for (int i = 0; i < latencies.length; i++) {
+            final InputTrace.Frame frame = trace.frames.get(i);
+            for (final InputTrace.Event event : frame.events) {
+                if (event.controller != null) {
+                    cp5.getController(event.controller).setValue(event.value);
+                } else {
+                    key = event.key;
+                    keyCode = event.keyCode;
+                    keyPressed();
+                }
+            }
+            mouseX = frame.mouseX;
+            mouseY = frame.mouseY;
+            externalPointers = frame.pointers;
+            frameMillis = frame.timeMillis;
+            publishParameters();
+
+            final long start = System.nanoTime();
+            updateGrid();
+            renderGrid();
+            latencies[i] = System.nanoTime() - start;
+
+            lastMouseX = mouseX;
+            lastMouseY = mouseY;
+        }
+        final long replayDuration = System.nanoTime() - replayStart;
+
+        println("Replayed " + latencies.length + " frames in " + nf(replayDuration / 1e6f, 0, 1) + " ms");
+        if (latencies.length > 0) {
+            final long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            final long total = Arrays.stream(sorted).sum();
+            println("Frame latency [ms]:"
+                    + " mean " + nf(total / 1e6f / sorted.length, 0, 3)
+                    + ", min " + nf(sorted[0] / 1e6f, 0, 3)
+                    + ", p50 " + nf(sorted[(int) (sorted.length * 0.50)] / 1e6f, 0, 3)
+                    + ", p90 " + nf(sorted[(int) (sorted.length * 0.90)] / 1e6f, 0, 3)
+                    + ", p99 " + nf(sorted[(int) (sorted.length * 0.99)] / 1e6f, 0, 3)
+                    + ", max " + nf(sorted[sorted.length - 1] / 1e6f, 0, 3));
+        }
+        exit();
+    }
+
+    /**
+     * Copies the grid state into the checkpoint buffer and lets it be written in the background.
+     * Skipped if the previous checkpoint is still being written, so that the frame is never stalled.
+     */
+    private void writeCheckpoint() {
+        final GridCheckpoint.State checkpointState = checkpoint.acquire();
+        if (checkpointState == null) {
+            return;
+        }
+        lastCheckpointMillis = frameMillis;
+
+        // The state of the random number generator cannot be read, so it is reseeded with a known seed instead
+        checkpointState.randomSeed = seedGenerator.nextLong();
+        randomSeed(checkpointState.randomSeed);
+        checkpointState.noiseSeed = noiseSeedValue;
+        checkpointState.imageIndex = currentImageIndex;
+        checkpointState.frameMillis = frameMillis;
+        final float[] parameterValues = parameters.toArray();
+        System.arraycopy(parameterValues, 0, checkpointState.parameters, 0, parameterValues.length);
+
+        for (int x = 0; x < cols; x++) {
+            for (int y = 0; y < rows; y++) {
+                final GridCell cell = gridCells[x][y];
+                final int index = x * rows + y;
+                checkpointState.colors[index] = cell.color;
+                checkpointState.glyphs[index] = cell.image != null ? gridImageIndices.get(cell.image) : -1;
+                checkpointState.displacementX[index] = cell.displacementX;
+                checkpointState.displacementY[index] = cell.displacementY;
+                checkpointState.lastImageInfluence[index] = cell.lastImageInfluence;
+            }
+        }
+        checkpoint.submit(checkpointState);
+    }
+
+    /**
+     * Resumes the grid from the latest checkpoint, if there is one for the same grid size and grid images.
+     * The checkpoint image is shown as soon as it is loaded.
+     */
+    private void restoreCheckpoint() {
+        final GridCheckpoint.State checkpointState;
+        try {
+            checkpointState = GridCheckpoint.readLatest(new File(sketchPath(checkpointFile)), cols, rows, gridImages.length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            println("Failed to read checkpoint file " + checkpointFile);
+            return;
+        }
+        if (checkpointState == null) {
+            return;
+        }
+
+        applyParameters(GridParameters.fromArray(checkpointState.parameters));
+        noiseSeedValue = checkpointState.noiseSeed;
+        noiseSeed(noiseSeedValue);
+        randomSeed(checkpointState.randomSeed);
+        frameMillisOffset = checkpointState.frameMillis - millis();
+        lastCheckpointMillis = checkpointState.frameMillis;
+
+        for (int x = 0; x < cols; x++) {
+            for (int y = 0; y < rows; y++) {
+                final GridCell cell = gridCells[x][y];
+                final int index = x * rows + y;
+                cell.color = checkpointState.colors[index];
+                cell.image = checkpointState.glyphs[index] >= 0 ? gridImages[checkpointState.glyphs[index]] : null;
+                cell.displacementX = checkpointState.displacementX[index];
+                cell.displacementY = checkpointState.displacementY[index];
+                cell.lastImageInfluence = checkpointState.lastImageInfluence[index];
+                cell.dirty = true;
+            }
+        }
+
+        if (checkpointState.imageIndex >= 0 && checkpointState.imageIndex < inputImages.length) {
+            resumeImageIndex = checkpointState.imageIndex;
+            showResumedImage();
+        }
+        println("Resumed from checkpoint");
+    }
+
+    /**
+     * Switches to the image of the resumed checkpoint once it is loaded.
+     */
+    private void showResumedImage() {
+        if (inputImages[resumeImageIndex] != null) {
+            currentImageIndex = resumeImageIndex;
+            resumeImageIndex = -1;
+            updateCurrentImage();
+        }
+    }
+
+    /**
+     * Reseeds the random number generators and restarts the grid from black on the current image.
+     */
+    private void restartSimulation(long seed) {
+        randomSeed(seed);
+        noiseSeed(seed);
+        noiseSeedValue = seed;
+        prepareGrid();
+        scaledImage = null;
+        updateCurrentImage();
+        background(0);
+    }
+
+    /**
+     * Publishes the parameter snapshot for this frame: the values edited since the last frame, or the next step of a
+     * running preset transition. An edit ends a running transition at its current values, so it is not overwritten.
+     */
+    private void publishParameters() {
+        if (parametersChanged) {
+            presetTransitionTarget = null;
+            parameters = captureParameters();
+        } else if (presetTransitionTarget != null) {
+            if (presetTransitionStartMillis < 0) {
+                presetTransitionStartMillis = frameMillis;
+            }
+            final float t = presetTransitionSeconds > 0 ? (frameMillis - presetTransitionStartMillis) / (presetTransitionSeconds * 1000) : 1;
+            applyParameters(presetTransitionStart.lerp(presetTransitionTarget, t));
+            if (t >= 1) {
+                presetTransitionTarget = null;
+            }
+        }
+        parametersChanged = false;
+        // Mosaic mode may just have been turned on
+        requestMosaicMatches();
+    }
+
+    /**
+     * Creates a snapshot of the current values of the editable parameter fields.
+     */
+    private GridParameters captureParameters() {
+        return new GridParameters.Builder()
+                .noiseScale(noiseScale)
+                .noiseTimeScale(noiseTimeScale)
+                .minUpdateProbability(minUpdateProbability)
+                .maxUpdateProbability(maxUpdateProbability)
+                .neighborRadius(neighborRadius)
+                .neighborInfluence(neighborInfluence)
+                .specialEffectType(specialEffectType)
+                .specialEffectInfluenceRadiusLow(specialEffectInfluenceRadiusLow)
+                .specialEffectInfluenceRadiusHigh(specialEffectInfluenceRadiusHigh)
+                .setLastImageInfluence(setLastImageInfluence)
+                .lastImageInfluenceReductionChance(lastImageInfluenceReductionChance)
+                .lastImageInfluenceReductionLow(lastImageInfluenceReductionLow)
+                .lastImageInfluenceReductionHigh(lastImageInfluenceReductionHigh)
+                .specialEffectDisplacementStrength(specialEffectDisplacementStrength)
+                .globalDisplacementType(globalDisplacementType)
+                .debugVisualizeNoise(debugVisualizeNoise)
+                .mosaicMode(mosaicMode)
+                .build();
+    }
+
+    /**
+     * Publishes the given snapshot and writes it back into the editable parameter fields.
+     */
+    private void applyParameters(GridParameters snapshot) {
+        noiseScale = snapshot.noiseScale;
+        noiseTimeScale = snapshot.noiseTimeScale;
+        minUpdateProbability = snapshot.minUpdateProbability;
+        maxUpdateProbability = snapshot.maxUpdateProbability;
+        neighborRadius = snapshot.neighborRadius;
+        neighborInfluence = snapshot.neighborInfluence;
+        specialEffectType = snapshot.specialEffectType;
+        specialEffectInfluenceRadiusLow = snapshot.specialEffectInfluenceRadiusLow;
+        specialEffectInfluenceRadiusHigh = snapshot.specialEffectInfluenceRadiusHigh;
+        setLastImageInfluence = snapshot.setLastImageInfluence;
+        lastImageInfluenceReductionChance = snapshot.lastImageInfluenceReductionChance;
+        lastImageInfluenceReductionLow = snapshot.lastImageInfluenceReductionLow;
+        lastImageInfluenceReductionHigh = snapshot.lastImageInfluenceReductionHigh;
+        specialEffectDisplacementStrength = snapshot.specialEffectDisplacementStrength;
+        globalDisplacementType = snapshot.globalDisplacementType;
+        debugVisualizeNoise = snapshot.debugVisualizeNoise;
+        mosaicMode = snapshot.mosaicMode;
+        parameters = snapshot;
+    }
+
     // Supported image file extensions
     final Set<String> imageExtensions = Set.of("jpg", "jpeg", "png", "gif", "bmp", "tiff", "tif", "wbmp");
 
@@ -399,6 +872,8 @@ public class ProcessingImageGrid extends PApplet {
             exit();
             return;
         }
+        // Keep the order stable, checkpoints refer to the grid images by index
+        Arrays.sort(files, Comparator.comparing(File::getName));
         final int numImages = files.length;
         gridImages = new PImage[numImages];
         gridBrightness = new float[numImages];
@@ -412,63 +887,161 @@ public class ProcessingImageGrid extends PApplet {
             }
             final PImage img = loadImage(files[i].getAbsolutePath());
             gridImages[i] = img;
+            gridImageIndices.put(img, i);
             final float brightness = calculateAverageBrightness(img);
             gridBrightness[i] = brightness;
             brightnessToImageMap.put(brightness, img);
         }
+        prepareMosaicIndex();
+    }
+
+    /**
+     * Builds the nearest neighbor index over the luminance descriptors of the grid images.
+     * The descriptors are stretched to the full brightness range, as the grid images rarely cover it on their own.
+     */
+    private void prepareMosaicIndex() {
+        mosaicGridImages = Arrays.stream(gridImages).filter(Objects::nonNull).toArray(PImage[]::new);
+        final float[][] descriptors = new float[mosaicGridImages.length][];
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int i = 0; i < mosaicGridImages.length; i++) {
+            descriptors[i] = calculateLuminanceDescriptor(mosaicGridImages[i]);
+            for (final float value : descriptors[i]) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        if (max > min) {
+            for (final float[] descriptor : descriptors) {
+                for (int i = 0; i < descriptor.length; i++) {
+                    descriptor[i] = map(descriptor[i], min, max, 0, 255);
+                }
+            }
+        }
+        mosaicIndex = new VantagePointTree(descriptors);
     }
 
     /**
-     * Loads input images from the specified directory.
+     * Loads the first input image from the specified directory and decodes the remaining ones in the background, so
+     * that the grid can start animating right away. Images that are not loaded yet are skipped when navigating.
+     *
+     * @return false if no input image could be loaded
      */
-    private void loadInputImages() {
+    private boolean loadInputImages() {
         final File dir = new File(sketchPath(inputImagesDir));
-        File[] files = dir.listFiles();
+        final File[] files = dir.listFiles();
         if (files == null) {
             println("No input images found in directory: " + inputImagesDir);
             exit();
-            return;
+            return false;
         }
-        final File[] finalFiles = Arrays.stream(files).filter(File::isFile).sorted(Comparator.comparing(File::getName)).toArray(File[]::new);
-        final int numImages = files.length;
+        final File[] imageFiles = Arrays.stream(files)
+                .filter(File::isFile)
+                .filter(file -> imageExtensions.contains(file.getName().substring(file.getName().lastIndexOf('.') + 1)))
+                .sorted(Comparator.comparing(File::getName))
+                .toArray(File[]::new);
+        final int numImages = imageFiles.length;
+
+        // Discard the images of a previous load that are still being decoded
+        if (inputImageLoader != null) {
+            inputImageLoader.shutdownNow();
+            inputImageLoader = null;
+        }
+        final Queue<Map.Entry<Integer, PImage>> loaded = new ConcurrentLinkedQueue<>();
+        loadedInputImages = loaded;
         inputImages = new PImage[numImages];
+        inputDetailImages = new PImage[numImages];
         println("Loading " + numImages + " files in " + inputImagesDir);
 
-        final AtomicBoolean failed = new AtomicBoolean(false);
-        try {
-            final ExecutorService executor = Executors.newFixedThreadPool(8);
+        // Load the first image that can be decoded synchronously, it is shown first
+        int first = 0;
+        while (first < numImages && (inputImages[first] = loadImage(imageFiles[first].getAbsolutePath())) == null) {
+            first++;
+        }
+        if (first == numImages) {
+            println("Failed to load input images");
+            exit();
+            return false;
+        }
+        currentImageIndex = first;
 
-            List<Future<Void>> futures = new ArrayList<>();
-            for (int i = 0; i < numImages; i++) {
-                if (!files[i].isFile()) {
-                    continue;
-                }
-                final String extension = files[i].getName().substring(files[i].getName().lastIndexOf('.') + 1);
-                if (!imageExtensions.contains(extension)) {
-                    continue;
-                }
+        pendingInputImages = numImages - first - 1;
+        if (pendingInputImages > 0) {
+            inputImageLoader = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            for (int i = first + 1; i < numImages; i++) {
                 final int index = i;
-                futures.add(executor.submit(() -> {
-                    final PImage img = loadImage(finalFiles[index].getAbsolutePath());
-                    inputImages[index] = img;
-                    if (index % 10 == 0) {
-                        println("Loaded " + index + " / " + numImages + " files");
+                inputImageLoader.submit(() -> {
+                    // Always report back, a failed image must not keep the loading progress from completing
+                    PImage img = null;
+                    try {
+                        img = loadImage(imageFiles[index].getAbsolutePath());
+                    } finally {
+                        loaded.add(new AbstractMap.SimpleImmutableEntry<>(index, img));
                     }
-                    return null;
-                }));
+                });
+            }
+            // Lets the worker threads terminate once all images are decoded
+            inputImageLoader.shutdown();
+        } else {
+            surface.setTitle(getClass().getSimpleName());
+        }
+        return true;
+    }
+
+    /**
+     * Takes over the input images decoded in the background and shows the loading progress in the window title.
+     */
+    private void collectLoadedInputImages() {
+        Map.Entry<Integer, PImage> loaded;
+        while ((loaded = loadedInputImages.poll()) != null) {
+            if (loaded.getValue() == null) {
+                println("Failed to load input image " + loaded.getKey());
             }
-            for (Future<Void> future : futures) {
-                future.get(); // Wait for all tasks to complete
+            inputImages[loaded.getKey()] = loaded.getValue();
+            pendingInputImages--;
+        }
+        if (resumeImageIndex >= 0) {
+            showResumedImage();
+        }
+
+        if (pendingInputImages > 0) {
+            surface.setTitle("Loading input images " + (inputImages.length - pendingInputImages) + " / " + inputImages.length);
+        } else {
+            surface.setTitle(getClass().getSimpleName());
+            println("Loaded " + inputImages.length + " input images");
+        }
+    }
+
+    /**
+     * Blocks until all input images are loaded, used where the full image set has to be known up front.
+     */
+    private void awaitInputImages() {
+        if (inputImageLoader != null) {
+            try {
+                inputImageLoader.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
-            failed.set(true);
         }
+        collectLoadedInputImages();
+    }
 
-        if (failed.get()) {
-            println("Failed to load input images");
-            exit();
+    @Override
+    public void dispose() {
+        if (inputImageLoader != null) {
+            inputImageLoader.shutdownNow();
         }
+        mosaicMatcher.shutdownNow();
+        if (frameStream != null) {
+            frameStream.stop();
+        }
+        if (pointerReceiver != null) {
+            pointerReceiver.stop();
+        }
+        if (checkpoint != null) {
+            checkpoint.close();
+        }
+        super.dispose();
     }
 
     /**
@@ -486,6 +1059,7 @@ public class ProcessingImageGrid extends PApplet {
                 gridCells[x][y].y = y;
             }
         }
+        influenceEngine = new InfluenceEngine(cols, rows, gridSize);
     }
 
     /**
@@ -510,9 +1084,24 @@ public class ProcessingImageGrid extends PApplet {
             newRows = (int) (newCols / aspectRatio);
         }
 
+        // Resize once to the mosaic descriptor resolution and keep the result, so that returning to an image is cheap.
+        // Both the scaled image and the mosaic descriptors are derived from it.
+        final int detailCols = newCols * mosaicDescriptorSize;
+        final int detailRows = newRows * mosaicDescriptorSize;
+        PImage detail = inputDetailImages[currentImageIndex];
+        if (detail == null || detail.width != detailCols || detail.height != detailRows) {
+            detail = currentImage.get();
+            detail.resize(detailCols, detailRows);
+            detail.loadPixels();
+            inputDetailImages[currentImageIndex] = detail;
+        }
+        detailImage = detail;
+
+        final PImage resizedImage = detail.get();
+        resizedImage.resize(newCols, newRows);
         scaledImage = createImage(newCols, newRows, RGB);
-        currentImage.resize(newCols, newRows);
-        scaledImage.copy(currentImage, 0, 0, currentImage.width, currentImage.height, 0, 0, newCols, newRows);
+        scaledImage.copy(resizedImage, 0, 0, resizedImage.width, resizedImage.height, 0, 0, newCols, newRows);
+        requestMosaicMatches();
 
         // Position offsets to center the image
         offsetX = (cols - newCols) / 2;
@@ -521,33 +1110,29 @@ public class ProcessingImageGrid extends PApplet {
         if (lastImage == null) {
             lastImage = scaledImage;
         }
+
+        // The last image is sampled with the offsets of the current one, so both fields are rebuilt
+        final TargetField newScaledField = new TargetField(scaledImage, offsetX, offsetY);
+        lastField = lastImage == scaledImage ? newScaledField : new TargetField(lastImage, offsetX, offsetY);
+        scaledField = newScaledField;
     }
 
     /**
-     * Finds the grid cells that are hovered by the mouse with a given padding radius.
+     * Collects the pointers that drive the special effects this frame: the mouse and all externally tracked pointers.
      */
-    private List<GridCell> findHoveredGridCells(int paddingRadius) {
-        final List<GridCell> hoveredCells = new ArrayList<>();
-        int mouseXGrid = mouseX / gridSize;
-        int mouseYGrid = mouseY / gridSize;
-
-        for (int dx = -paddingRadius; dx <= paddingRadius; dx++) {
-            for (int dy = -paddingRadius; dy <= paddingRadius; dy++) {
-                int nx = mouseXGrid + dx;
-                int ny = mouseYGrid + dy;
-                if (nx >= 0 && nx < cols && ny >= 0 && ny < rows && (dx * dx + dy * dy <= paddingRadius * paddingRadius)) {
-                    hoveredCells.add(gridCells[nx][ny]);
-                }
-            }
-        }
-        return hoveredCells;
+    private List<InfluenceEngine.Pointer> collectPointers() {
+        final List<InfluenceEngine.Pointer> pointers = new ArrayList<>();
+        pointers.add(new InfluenceEngine.Pointer(mouseX, mouseY, lastMouseX, lastMouseY));
+        pointers.addAll(externalPointers);
+        return pointers;
     }
 
     /**
      * Updates the grid based on noise and user interactions.
      */
     private void updateGrid() {
-        final float time = millis() / 1000.0f; // seconds
+        final GridParameters params = parameters;
+        final float time = frameMillis / 1000.0f; // seconds
 
         boolean[][] shouldUpdate = new boolean[cols][rows];
         float[][] probabilities = new float[cols][rows];
@@ -566,18 +1151,18 @@ public class ProcessingImageGrid extends PApplet {
         for (int x = 0; x < cols; x++) {
             for (int y = 0; y < rows; y++) {
                 // Compute noise-based update probability
-                final float noiseValue = noise(x * noiseScale, y * noiseScale, time * noiseTimeScale);
+                final float noiseValue = noise(x * params.noiseScale, y * params.noiseScale, time * params.noiseTimeScale);
                 final float adjustedNoiseValue = 1 / (1 + exp(-10 * (noiseValue - 0.5f)));
-                probabilities[x][y] = adjustedNoiseValue * (maxUpdateProbability - minUpdateProbability) + minUpdateProbability;
+                probabilities[x][y] = adjustedNoiseValue * (params.maxUpdateProbability - params.minUpdateProbability) + params.minUpdateProbability;
 
                 shouldUpdate[x][y] = randomValues[x][y] < probabilities[x][y];
             }
         }
 
-        if (debugVisualizeNoise) {
+        if (params.debugVisualizeNoise) {
             for (int x = 0; x < cols; x++) {
                 for (int y = 0; y < rows; y++) {
-                    final float displayValue = 255 * map(probabilities[x][y], minUpdateProbability, maxUpdateProbability, 0, 1);
+                    final float displayValue = 255 * map(probabilities[x][y], params.minUpdateProbability, params.maxUpdateProbability, 0, 1);
                     gridCells[x][y].image = getClosestGridImage(displayValue);
                     gridCells[x][y].color = color(displayValue);
                     gridCells[x][y].dirty = true;
@@ -589,10 +1174,10 @@ public class ProcessingImageGrid extends PApplet {
         // Second Pass: Influence Neighbors
         for (int x = 0; x < cols; x++) {
             for (int y = 0; y < rows; y++) {
-                final float adjustmentValue = shouldUpdate[x][y] ? influenceIncrement : -influenceIncrement / neighborCount;
+                final float adjustmentValue = shouldUpdate[x][y] ? params.influenceIncrement : -params.influenceIncrement / params.neighborCount;
 
-                for (int dx = -neighborRadius; dx <= neighborRadius; dx++) {
-                    for (int dy = -neighborRadius; dy <= neighborRadius; dy++) {
+                for (int dx = -params.neighborRadius; dx <= params.neighborRadius; dx++) {
+                    for (int dy = -params.neighborRadius; dy <= params.neighborRadius; dy++) {
                         int nx = x + dx;
                         int ny = y + dy;
                         if (nx >= 0 && nx < cols && ny >= 0 && ny < rows) {
@@ -618,57 +1203,52 @@ public class ProcessingImageGrid extends PApplet {
             }
         }
 
-        // Special effect: Apply effects based on mouse interaction
-        final List<GridCell> hoveredGridCells = findHoveredGridCells((int) map(dist(mouseX, mouseY, lastMouseX, lastMouseY), 0, 100, specialEffectInfluenceRadiusLow, specialEffectInfluenceRadiusHigh));
-        for (final GridCell cell : hoveredGridCells) {
-            if (specialEffectType == 1 || specialEffectType == -1) {
+        // Special effect: Apply effects based on the interaction of all pointers, overlapping stamps are merged
+        final boolean displace = params.specialEffectType == 2 || params.specialEffectType == 3 || params.specialEffectType == -1;
+        influenceEngine.beginFrame();
+        for (final InfluenceEngine.Pointer pointer : collectPointers()) {
+            final int radius = (int) map(dist(pointer.x, pointer.y, pointer.lastX, pointer.lastY), 0, 100, params.specialEffectInfluenceRadiusLow, params.specialEffectInfluenceRadiusHigh);
+            influenceEngine.stamp(pointer, radius, displace, params.specialEffectDisplacementStrength, Math.min(displayWidth, displayHeight) - 50);
+        }
+        for (int i = 0; i < influenceEngine.getTouchedCount(); i++) {
+            final int index = influenceEngine.getTouchedCell(i);
+            final GridCell cell = gridCells[index / rows][index % rows];
+            if (params.specialEffectType == 1 || params.specialEffectType == -1) {
                 // Variant 1: Apply last image influence based on mouse movement
-                cell.lastImageInfluence = setLastImageInfluence;
+                cell.lastImageInfluence = params.setLastImageInfluence;
                 if (randomValues[cell.x][cell.y] > 0.3) {
                     cell.color = lastImage.get(cell.x - offsetX, cell.y - offsetY);
                     cell.dirty = true;
                 }
             }
 
-            // Variant 2: Apply displacement based on the mouse direction
-            if (specialEffectType == 2 || specialEffectType == 3 || specialEffectType == -1) {
-                final int dx = mouseX - lastMouseX;
-                final int dy = mouseY - lastMouseY;
-                final float distance = dist(mouseX, mouseY, lastMouseX, lastMouseY);
-                if (distance != 0 && distance < Math.min(displayWidth, displayHeight) - 50) {
-                    if (specialEffectType == 3) {
-                        cell.displacementX += -dx / distance * specialEffectDisplacementStrength;
-                        cell.displacementY += -dy / distance * specialEffectDisplacementStrength;
-                    } else {
-                        cell.displacementX = -dx / distance * specialEffectDisplacementStrength;
-                        cell.displacementY = -dy / distance * specialEffectDisplacementStrength;
-                    }
-
-                    final float nx = dx / distance;
-                    final float ny = dy / distance;
-                    final float displacement = map(dist(mouseX, mouseY, cell.x * gridSize, cell.y * gridSize), 0, 100, 0, 1);
-                    cell.displacementX += nx * displacement * 5;
-                    cell.displacementY += ny * displacement * 5;
-
-                    cell.dirty = true;
+            // Variant 2: Apply displacement based on the mouse direction, variant 3 accumulates it
+            if (influenceEngine.isDisplaced(index)) {
+                if (params.specialEffectType == 3) {
+                    cell.displacementX += influenceEngine.getDisplacementX(index);
+                    cell.displacementY += influenceEngine.getDisplacementY(index);
+                } else {
+                    cell.displacementX = influenceEngine.getDisplacementX(index);
+                    cell.displacementY = influenceEngine.getDisplacementY(index);
                 }
+                cell.dirty = true;
             }
         }
 
         // Global displacement effect
-        if (globalDisplacementType != 0) {
+        if (params.globalDisplacementType != 0) {
             for (int x = 0; x < cols; x++) {
                 for (int y = 0; y < rows; y++) {
-                    if (globalDisplacementType == 1 || globalDisplacementType == 2) {
-                        final float noiseValue = noise(x * noiseScale, y * noiseScale, time * noiseTimeScale);
-                        final float nx = noise(x * noiseScale, y * noiseScale, time * noiseTimeScale + 100);
-                        final float ny = noise(x * noiseScale, y * noiseScale, time * noiseTimeScale + 200);
+                    if (params.globalDisplacementType == 1 || params.globalDisplacementType == 2) {
+                        final float noiseValue = noise(x * params.noiseScale, y * params.noiseScale, time * params.noiseTimeScale);
+                        final float nx = noise(x * params.noiseScale, y * params.noiseScale, time * params.noiseTimeScale + 100);
+                        final float ny = noise(x * params.noiseScale, y * params.noiseScale, time * params.noiseTimeScale + 200);
                         final float displacement = map(noiseValue, 0, 1, 0, 1);
 
-                        if (globalDisplacementType == 1) {
+                        if (params.globalDisplacementType == 1) {
                             gridCells[x][y].displacementX = nx * displacement * 3;
                             gridCells[x][y].displacementY = ny * displacement * 3;
-                        } else if (globalDisplacementType == 2) {
+                        } else if (params.globalDisplacementType == 2) {
                             gridCells[x][y].displacementX += nx * displacement * 0.1f;
                             gridCells[x][y].displacementY += ny * displacement * 0.1f;
                         }
@@ -678,13 +1258,17 @@ public class ProcessingImageGrid extends PApplet {
         }
 
         // Final Pass: Apply Updates
+        scaledField.refreshBorder(probabilities, params);
+        if (lastField != scaledField) {
+            lastField.refreshBorder(probabilities, params);
+        }
         for (int x = 0; x < cols; x++) {
             for (int y = 0; y < rows; y++) {
                 if (shouldUpdate[x][y]) {
                     gridCells[x][y].dirty = true;
 
-                    final int imgX = x - offsetX + (int) gridCells[x][y].displacementX;
-                    final int imgY = y - offsetY + (int) gridCells[x][y].displacementY;
+                    final int fieldX = x + (int) gridCells[x][y].displacementX;
+                    final int fieldY = y + (int) gridCells[x][y].displacementY;
 
                     if (gridCells[x][y].displacementX != 0 || gridCells[x][y].displacementY != 0) {
                         gridCells[x][y].displacementX -= gridCells[x][y].displacementX > 0 ? 1 : -1;
@@ -694,60 +1278,41 @@ public class ProcessingImageGrid extends PApplet {
                     final int targetColor;
                     if (gridCells[x][y].lastImageInfluence > 0) {
                         targetColor = blendColor(
-                                getPixelColor(scaledImage, imgX, imgY, probabilities),
-                                getPixelColor(lastImage, imgX, imgY, probabilities),
+                                scaledField.get(fieldX, fieldY),
+                                lastField.get(fieldX, fieldY),
                                 gridCells[x][y].lastImageInfluence);
-                        gridCells[x][y].lastImageInfluence -= random(1) > lastImageInfluenceReductionChance
-                                ? lastImageInfluenceReductionHigh : lastImageInfluenceReductionLow;
+                        gridCells[x][y].lastImageInfluence -= random(1) > params.lastImageInfluenceReductionChance
+                                ? params.lastImageInfluenceReductionHigh : params.lastImageInfluenceReductionLow;
                     } else {
-                        targetColor = getPixelColor(scaledImage, imgX, imgY, probabilities);
+                        targetColor = scaledField.get(fieldX, fieldY);
                     }
 
-                    final float brightnessValue = brightness(targetColor);
-                    final float targetBrightness = modulateBrightness(brightnessValue);
+                    PImage gridImage = params.mosaicMode ? findMosaicGridImage(fieldX, fieldY) : null;
+                    if (gridImage == null) {
+                        final float brightnessValue = brightness(targetColor);
+                        gridImage = getClosestGridImage(modulateBrightness(brightnessValue));
+                    }
 
-                    blendColorOnGridElement(x, y, targetBrightness, targetColor, randomValues[x][y] > 0.3 ? 0.7f : 0.3f);
+                    blendColorOnGridElement(x, y, gridImage, targetColor, randomValues[x][y] > 0.3 ? 0.7f : 0.3f);
                 }
             }
         }
     }
 
     /**
-     * Retrieves the pixel color from an image, adjusting for out-of-bounds coordinates.
+     * Calculates the color of a pixel outside of the image bounds: the nearest border pixel blended with a gray tone.
      */
-    private int getPixelColor(final PImage img, final int x, final int y, float[][] probabilities) {
-        if (x >= 0 && x < img.width && y >= 0 && y < img.height) {
-            return img.get(x, y);
-        }
-
-        // Outside of image bounds, adjust target color: blend border pixel with a gray tone
-        int sampleX = x;
-        int sampleY = y;
-
-        if (x < 0) {
-            sampleX = 0;
-        } else if (x >= img.width) {
-            sampleX = img.width - 1;
-        }
-
-        if (y < 0) {
-            sampleY = 0;
-        } else if (y >= img.height) {
-            sampleY = img.height - 1;
-        }
-
+    private int getBorderColor(final PImage img, final int sampleX, final int sampleY, float[][] probabilities, GridParameters params) {
         final int borderColor = img.get(sampleX, sampleY);
-        final int grayTone = color(0 + map(probabilities[sampleX][sampleY], minUpdateProbability, maxUpdateProbability, 0, 1) * 60);
-        final int blendedColor = blendColor(borderColor, grayTone, 0.5f);
-
-        return blendedColor;
+        final int grayTone = color(0 + map(probabilities[sampleX][sampleY], params.minUpdateProbability, params.maxUpdateProbability, 0, 1) * 60);
+        return blendColor(borderColor, grayTone, 0.5f);
     }
 
     /**
      * Blends a color onto a grid element.
      */
-    private void blendColorOnGridElement(int x, int y, float targetBrightness, int blendedColor, float influence) {
-        gridCells[x][y].image = getClosestGridImage(targetBrightness);
+    private void blendColorOnGridElement(int x, int y, PImage gridImage, int blendedColor, float influence) {
+        gridCells[x][y].image = gridImage;
         gridCells[x][y].color = blendColor(gridCells[x][y].color, blendedColor, influence);
     }
 
@@ -808,6 +1373,117 @@ public class ProcessingImageGrid extends PApplet {
         return totalBrightness / img.pixels.length;
     }
 
+    /**
+     * Calculates the average brightness of each cell when splitting the image into a grid of mosaic descriptor size.
+     */
+    private float[] calculateLuminanceDescriptor(final PImage img) {
+        final float[] descriptor = new float[mosaicDescriptorSize * mosaicDescriptorSize];
+        img.loadPixels();
+        for (int sy = 0; sy < mosaicDescriptorSize; sy++) {
+            final int y0 = sy * img.height / mosaicDescriptorSize;
+            final int y1 = Math.max(y0 + 1, (sy + 1) * img.height / mosaicDescriptorSize);
+            for (int sx = 0; sx < mosaicDescriptorSize; sx++) {
+                final int x0 = sx * img.width / mosaicDescriptorSize;
+                final int x1 = Math.max(x0 + 1, (sx + 1) * img.width / mosaicDescriptorSize);
+                float totalBrightness = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        totalBrightness += brightness(img.pixels[y * img.width + x]);
+                    }
+                }
+                descriptor[sy * mosaicDescriptorSize + sx] = totalBrightness / ((x1 - x0) * (y1 - y0));
+            }
+        }
+        return descriptor;
+    }
+
+    /**
+     * Matches all cells covered by the scaled image against the grid images in the background, if mosaic mode is on
+     * and the scaled image has not been submitted yet. Until the matches are published, mosaic mode falls back to the
+     * brightness matching. Replays and recordings wait for the matches, so that the grid images picked do not depend
+     * on the timing of the worker thread.
+     */
+    private void requestMosaicMatches() {
+        if (!parameters.mosaicMode || scaledImage == null || mosaicMatchImage == scaledImage) {
+            return;
+        }
+        if (mosaicMatchTask != null) {
+            mosaicMatchTask.cancel(false);
+        }
+        final PImage source = detailImage;
+        final PImage target = scaledImage;
+        mosaicMatchImage = target;
+        mosaicMatchTask = mosaicMatcher.submit(() -> {
+            final float[] descriptors = calculateMosaicDescriptors(source, target.width, target.height);
+            final int descriptorLength = mosaicDescriptorSize * mosaicDescriptorSize;
+            final int[] matches = new int[target.width * target.height];
+            for (int cell = 0; cell < matches.length; cell++) {
+                matches[cell] = mosaicIndex.nearest(descriptors, cell * descriptorLength);
+            }
+            mosaicMatches = new AbstractMap.SimpleImmutableEntry<>(target, matches);
+        });
+        if (replayTrace != null || traceWriter != null) {
+            awaitMosaicMatches();
+        }
+    }
+
+    /**
+     * Blocks until the mosaic matches of the current image are published, if mosaic mode is on.
+     */
+    private void awaitMosaicMatches() {
+        if (!parameters.mosaicMode || mosaicMatchTask == null) {
+            return;
+        }
+        try {
+            mosaicMatchTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Samples the luminance descriptors of all cells of a cellsX x cellsY grid from the given image, which has the size
+     * of that grid times the descriptor size and its pixels loaded. Called from the mosaic worker thread.
+     */
+    private float[] calculateMosaicDescriptors(final PImage image, final int cellsX, final int cellsY) {
+        final int size = mosaicDescriptorSize;
+        final int descriptorLength = size * size;
+
+        final float[] descriptors = new float[cellsX * cellsY * descriptorLength];
+        for (int y = 0; y < image.height; y++) {
+            for (int x = 0; x < image.width; x++) {
+                final int cell = (y / size) * cellsX + x / size;
+                descriptors[cell * descriptorLength + (y % size) * size + x % size] = pixelBrightness(image.pixels[y * image.width + x]);
+            }
+        }
+        return descriptors;
+    }
+
+    /**
+     * Same as {@link #brightness(int)} in the default color mode, but safe to call from worker threads, as the
+     * graphics cache their last color conversion.
+     */
+    private static float pixelBrightness(final int pixel) {
+        return Math.max((pixel >> 16) & 0xff, Math.max((pixel >> 8) & 0xff, pixel & 0xff));
+    }
+
+    /**
+     * Retrieves the grid image whose luminance descriptor is closest to the one of the image cell at the given grid
+     * position, or null if the position is outside of the image or the matches of the current image are not ready yet.
+     */
+    private PImage findMosaicGridImage(final int gridX, final int gridY) {
+        final int imgX = gridX - offsetX;
+        final int imgY = gridY - offsetY;
+        final Map.Entry<PImage, int[]> matches = mosaicMatches;
+        if (imgX < 0 || imgX >= scaledImage.width || imgY < 0 || imgY >= scaledImage.height || matches == null || matches.getKey() != scaledImage) {
+            return null;
+        }
+        final int match = matches.getValue()[imgY * scaledImage.width + imgX];
+        return match >= 0 ? mosaicGridImages[match] : null;
+    }
+
     /**
      * Modulates the brightness of a value with a random offset.
      */
@@ -831,6 +1507,88 @@ public class ProcessingImageGrid extends PApplet {
         }
     }
 
+    /**
+     * Flat packed-int copy of an input image in grid coordinates, covering the whole grid including the letterbox
+     * and a displacement margin. The image pixels are copied once when the field is created, the blended border
+     * region around the image depends on the noise tone and is recomputed by {@link #refreshBorder(float[][], GridParameters)}.
+     * Lookups outside of the field are clamped to its edge, which yields the same color as the exact position would,
+     * since both resolve to the same image border pixel.
+     */
+    private class TargetField {
+        final PImage image;
+        final int originX, originY; // grid position of the first field element
+        final int imageX, imageY; // field position of the first image pixel
+        final int width, height;
+        final int[] pixels;
+
+        // Border colors along the image edges, the top and bottom rows include the corners
+        final int[] topRow, bottomRow, leftColumn, rightColumn;
+
+        TargetField(final PImage image, final int offsetX, final int offsetY) {
+            this.image = image;
+            originX = Math.min(-targetFieldMargin, offsetX - 1);
+            originY = Math.min(-targetFieldMargin, offsetY - 1);
+            width = Math.max(cols + targetFieldMargin, offsetX + image.width + 1) - originX;
+            height = Math.max(rows + targetFieldMargin, offsetY + image.height + 1) - originY;
+            imageX = offsetX - originX;
+            imageY = offsetY - originY;
+            pixels = new int[width * height];
+
+            topRow = new int[image.width];
+            bottomRow = new int[image.width];
+            leftColumn = new int[image.height];
+            rightColumn = new int[image.height];
+
+            image.loadPixels();
+            for (int y = 0; y < image.height; y++) {
+                final int rowStart = (imageY + y) * width + imageX;
+                for (int x = 0; x < image.width; x++) {
+                    pixels[rowStart + x] = image.get(x, y);
+                }
+            }
+        }
+
+        /**
+         * Recomputes the region outside of the image for the gray tones of the current noise probabilities.
+         */
+        void refreshBorder(float[][] probabilities, GridParameters params) {
+            final int lastX = image.width - 1;
+            final int lastY = image.height - 1;
+            for (int x = 0; x <= lastX; x++) {
+                topRow[x] = getBorderColor(image, x, 0, probabilities, params);
+                bottomRow[x] = getBorderColor(image, x, lastY, probabilities, params);
+            }
+            for (int y = 0; y <= lastY; y++) {
+                leftColumn[y] = getBorderColor(image, 0, y, probabilities, params);
+                rightColumn[y] = getBorderColor(image, lastX, y, probabilities, params);
+            }
+
+            for (int y = 0; y < height; y++) {
+                final int rowStart = y * width;
+                final int rowImageX = rowStart + imageX;
+                final int rowImageEnd = rowImageX + image.width;
+                if (y < imageY || y >= imageY + image.height) {
+                    final int[] edge = y < imageY ? topRow : bottomRow;
+                    Arrays.fill(pixels, rowStart, rowImageX, edge[0]);
+                    System.arraycopy(edge, 0, pixels, rowImageX, image.width);
+                    Arrays.fill(pixels, rowImageEnd, rowStart + width, edge[lastX]);
+                } else {
+                    Arrays.fill(pixels, rowStart, rowImageX, leftColumn[y - imageY]);
+                    Arrays.fill(pixels, rowImageEnd, rowStart + width, rightColumn[y - imageY]);
+                }
+            }
+        }
+
+        /**
+         * Retrieves the target color at the given grid position.
+         */
+        int get(final int gridX, final int gridY) {
+            final int x = Math.min(Math.max(gridX - originX, 0), width - 1);
+            final int y = Math.min(Math.max(gridY - originY, 0), height - 1);
+            return pixels[y * width + x];
+        }
+    }
+
     /**
      * Inner class to store both image and color for each grid cell.
      */
@@ -0,0 +1,161 @@
+package de.yanwittmann.processing;
+
+/**
+ * Vantage-point tree for nearest neighbor lookups of fixed-length descriptors, used to match the luminance
+ * descriptors of the grid cells against the ones of the grid images.
+ * <p>
+ * The nodes are stored in flat arrays: the vantage point of the range {@code [lo, hi)} is located at {@code lo}, the
+ * points within its threshold distance follow up to the median, the points outside of it after the median.
+ * Lookups are not thread-safe.
+ */
+class VantagePointTree {
+
+    private final int dimensions;
+    private final int[] ids;
+    private final float[] points;
+    private final float[] thresholds;
+
+    // Search state of the current lookup
+    private int bestId;
+    private float bestDistance;
+
+    /**
+     * Builds the tree from the given descriptors, which all have to be of the same length.
+     * The ids returned by {@link #nearest(float[], int)} are the indices into this array.
+     */
+    VantagePointTree(final float[][] descriptors) {
+        dimensions = descriptors.length > 0 ? descriptors[0].length : 0;
+        ids = new int[descriptors.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        thresholds = new float[descriptors.length];
+
+        build(descriptors, new float[descriptors.length], 0, descriptors.length);
+
+        // Store the descriptors in tree order to keep the lookups cache friendly
+        points = new float[descriptors.length * dimensions];
+        for (int i = 0; i < ids.length; i++) {
+            System.arraycopy(descriptors[ids[i]], 0, points, i * dimensions, dimensions);
+        }
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Finds the descriptor closest to the one stored in {@code query} starting at {@code offset}.
+     *
+     * @return the index of the closest descriptor or -1 if the tree is empty
+     */
+    public int nearest(final float[] query, final int offset) {
+        bestId = -1;
+        bestDistance = Float.MAX_VALUE;
+        search(query, offset, 0, ids.length);
+        return bestId;
+    }
+
+    private void build(final float[][] descriptors, final float[] distances, final int lo, final int hi) {
+        if (hi - lo <= 1) {
+            return;
+        }
+
+        // Use the middle element as vantage point, the descriptors are not ordered in any way
+        swap(distances, lo, lo + (hi - lo) / 2);
+        final float[] vantagePoint = descriptors[ids[lo]];
+        for (int i = lo + 1; i < hi; i++) {
+            distances[i] = distance(vantagePoint, descriptors[ids[i]], 0);
+        }
+
+        final int median = lo + 1 + (hi - lo - 2) / 2;
+        select(distances, lo + 1, hi - 1, median);
+        thresholds[lo] = distances[median];
+
+        build(descriptors, distances, lo + 1, median + 1);
+        build(descriptors, distances, median + 1, hi);
+    }
+
+    private void search(final float[] query, final int offset, final int lo, final int hi) {
+        if (lo >= hi) {
+            return;
+        }
+
+        final float d = distance(query, offset, lo);
+        if (d < bestDistance) {
+            bestDistance = d;
+            bestId = ids[lo];
+        }
+        if (hi - lo == 1) {
+            return;
+        }
+
+        final int median = lo + 1 + (hi - lo - 2) / 2;
+        final float threshold = thresholds[lo];
+        if (d < threshold) {
+            search(query, offset, lo + 1, median + 1);
+            if (d + bestDistance >= threshold) {
+                search(query, offset, median + 1, hi);
+            }
+        } else {
+            search(query, offset, median + 1, hi);
+            if (d - bestDistance <= threshold) {
+                search(query, offset, lo + 1, median + 1);
+            }
+        }
+    }
+
+    /**
+     * Partially sorts the range {@code [left, right]} by distance so that the element at {@code k} is in its final
+     * position, with smaller or equal distances before and larger or equal ones after it.
+     */
+    private void select(final float[] distances, int left, int right, final int k) {
+        while (left < right) {
+            final float pivot = distances[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (distances[i] < pivot) i++;
+                while (distances[j] > pivot) j--;
+                if (i <= j) {
+                    swap(distances, i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(final float[] distances, final int a, final int b) {
+        final float distance = distances[a];
+        distances[a] = distances[b];
+        distances[b] = distance;
+        final int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+    }
+
+    private float distance(final float[] query, final int offset, final int node) {
+        final int start = node * dimensions;
+        float sum = 0;
+        for (int i = 0; i < dimensions; i++) {
+            final float diff = query[offset + i] - points[start + i];
+            sum += diff * diff;
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    private static float distance(final float[] a, final float[] b, final int offset) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            final float diff = a[i] - b[offset + i];
+            sum += diff * diff;
+        }
+        return (float) Math.sqrt(sum);
+    }
+}